@@ -0,0 +1,82 @@
+package fam.fishkin.spl.bench;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import fam.fishkin.spl.Distance;
+import fam.fishkin.spl.Spl;
+
+/**
+ * One desired title against a page's worth of candidate titles, with each of the ways
+ * {@link Distance} has of scoring them.
+ * Run with "--add-modules jdk.incubator.vector" in the JVM args to measure the SIMD batch.
+ * @author Ken Fishkin
+ *
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DistanceBenchmark {
+  @Param({ "20", "1000" })
+  public int candidates;
+
+  private String pattern;
+  private String[] titles;
+
+  @Setup
+  public void setUp() {
+    Random random = new Random(Fixtures.SEED);
+    pattern = Fixtures.WANTED_TITLE.toLowerCase();
+    titles = new String[candidates];
+    for (int i = 0; i < candidates; i++) {
+      titles[i] = (i == candidates / 2) ? Fixtures.WANTED_TITLE : Fixtures.title(random);
+    }
+  }
+
+  @Benchmark
+  public void levenshtein(Blackhole bh) {
+    for (String title : titles) {
+      bh.consume(Distance.LevenshteinDistance(pattern, title));
+    }
+  }
+
+  @Benchmark
+  public void queryAtMost(Blackhole bh) {
+    Distance.Query query = Distance.query(pattern);
+    for (String title : titles) {
+      bh.consume(query.distanceAtMost(title, Spl.MAX_DISTANCE));
+    }
+  }
+
+  // the way the matchers use it: the cutoff tightens as better candidates turn up.
+  @Benchmark
+  public int queryTightening() {
+    Distance.Query query = Distance.query(pattern);
+    int best = Integer.MAX_VALUE;
+    for (String title : titles) {
+      best = Math.min(best, query.distanceAtMost(title, best - 1));
+    }
+    return best;
+  }
+
+  @Benchmark
+  public int[] queryBatch() {
+    return Distance.query(pattern).distances(titles);
+  }
+}
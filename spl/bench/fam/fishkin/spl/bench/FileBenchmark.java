@@ -0,0 +1,62 @@
+package fam.fishkin.spl.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import fam.fishkin.spl.MediaItem;
+import fam.fishkin.spl.SplDomain;
+
+/**
+ * Reading and rewriting the books file, at sizes from a big list to far more than anyone has.
+ * @author Ken Fishkin
+ *
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class FileBenchmark {
+  @Param({ "10000", "100000", "1000000" })
+  public int rows;
+
+  private SplDomain spl;
+  private File input;
+  private File output;
+  private Iterable<MediaItem> items;
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException {
+    spl = new SplDomain();
+    input = Fixtures.tdfFile(rows);
+    output = File.createTempFile("bench", ".tdf");
+    output.deleteOnExit();
+    items = spl.readFile(input.getPath());
+  }
+
+  @Benchmark
+  public Iterable<MediaItem> readFile() {
+    return spl.readFile(input.getPath());
+  }
+
+  @Benchmark
+  public File updateFile() {
+    spl.updateFile(items, output.getPath());
+    return output;
+  }
+}
@@ -0,0 +1,179 @@
+package fam.fishkin.spl.bench;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import fam.fishkin.spl.NetflixCatalog;
+
+/**
+ * The inputs the benchmarks run on. Each one can be a recorded file, named by a system
+ * property (e.g. -Dspl.bench.html=saved-search.html), so a benchmark can be run on a real
+ * page; otherwise it's generated, from a fixed seed, in the same shape as the real thing,
+ * so runs on different machines and days compare like with like.
+ * @author Ken Fishkin
+ *
+ */
+final class Fixtures {
+  static final long SEED = 20230601L;
+  // what the generated searches are looking for.
+  static final String WANTED_TITLE = "The Cadaver King and the Country Dentist";
+  static final String WANTED_AUTHOR = "Balko, Radley";
+
+  private static final String[] WORDS = {
+    "the", "of", "and", "a", "to", "in", "king", "country", "dentist", "cadaver", "night", "house",
+    "river", "secret", "history", "garden", "war", "stone", "winter", "daughter", "city", "last",
+    "light", "road", "summer", "girl", "man", "world", "time", "dark", "island", "book", "little",
+    "great", "silent", "lost", "star", "fire", "water", "queen", "game", "spies", "way", "go",
+  };
+  private static final String[] NAMES = {
+    "Balko", "Carrington", "Ashdown", "Chandler", "Cercas", "Bogira", "Smith", "Nguyen", "Garcia",
+    "Okafor", "Lindqvist", "Tanaka", "Murphy", "Kowalski", "Haddad", "Rossi", "Singh", "Moreau",
+  };
+  private static final String[] FORMATS = { "Book", "eBook", "Audiobook", "Video" };
+
+  private Fixtures() {
+  }
+
+  /**
+   * @param random where to get the words
+   * @return a title-like string
+   */
+  static String title(Random random) {
+    int words = 1 + random.nextInt(6);
+    StringBuilder title = new StringBuilder();
+    for (int i = 0; i < words; i++) {
+      String word = WORDS[random.nextInt(WORDS.length)];
+      if (i > 0) {
+        title.append(' ');
+      }
+      title.append(Character.toUpperCase(word.charAt(0))).append(word, 1, word.length());
+    }
+    return title.toString();
+  }
+
+  /**
+   * @param random where to get the names
+   * @return an author, last name first
+   */
+  static String author(Random random) {
+    return NAMES[random.nextInt(NAMES.length)] + ", " + NAMES[random.nextInt(NAMES.length)];
+  }
+
+  /**
+   * @param results how many results to generate
+   * @return a bibliocommons search results page, or the recorded one
+   */
+  static String resultsPage(int results) {
+    String recorded = recorded("spl.bench.html");
+    if (recorded != null) {
+      return recorded;
+    }
+    Random random = new Random(SEED);
+    StringBuilder page = new StringBuilder("<html><head><title>Search</title></head><body><div class=\"cp-search-results\">\n");
+    for (int i = 0; i < results; i++) {
+      boolean wanted = (i == results / 2);
+      page.append("<div class=\"cp-search-result-item-content\">")
+          .append("<h2 class=\"cp-title\"><a href=\"/item/").append(i).append("\"><span class=\"title-content\">")
+          .append(wanted ? WANTED_TITLE : title(random)).append("</span></a></h2>")
+          .append("<div class=\"cp-by-author-block\"><span class=\"cp-author-link\"><a>")
+          .append(wanted ? WANTED_AUTHOR : author(random)).append("</a></span>");
+      if (random.nextInt(3) == 0) {
+        page.append("<span class=\"cp-author-link\"><a>").append(author(random)).append("</a></span>");
+      }
+      page.append("</div><div class=\"cp-format-info\"><span class=\"cp-format-indicator\">")
+          .append(FORMATS[random.nextInt(FORMATS.length)]).append("</span></div>")
+          .append("<div class=\"cp-availability\">Available</div></div>\n");
+    }
+    return page.append("</div></body></html>\n").toString();
+  }
+
+  /**
+   * @param items how many items to generate
+   * @return an RSS gateway search feed, or the recorded one
+   */
+  static String rssFeed(int items) {
+    String recorded = recorded("spl.bench.rss");
+    if (recorded != null) {
+      return recorded;
+    }
+    Random random = new Random(SEED);
+    StringBuilder feed = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+        + "<rss version=\"2.0\" xmlns:dc=\"http://purl.org/dc/elements/1.1/\"><channel><title>Search</title>\n");
+    for (int i = 0; i < items; i++) {
+      boolean wanted = (i == items / 2);
+      feed.append("<item><title>").append(wanted ? WANTED_TITLE : title(random)).append("</title>")
+          .append("<link>https://seattle.bibliocommons.com/item/").append(i).append("</link>")
+          .append("<dc:creator>").append(wanted ? WANTED_AUTHOR : author(random)).append("</dc:creator>")
+          .append("<format>").append(FORMATS[random.nextInt(FORMATS.length)]).append("</format>")
+          .append("<description>A description of the item that isn't matched on.</description></item>\n");
+    }
+    return feed.append("</channel></rss>\n").toString();
+  }
+
+  /**
+   * Write a books file.
+   * @param rows how many books
+   * @return the file. It's deleted when the JVM exits.
+   * @throws IOException if it can't be written
+   */
+  static File tdfFile(int rows) throws IOException {
+    String recorded = System.getProperty("spl.bench.tdf");
+    if (recorded != null) {
+      return new File(recorded);
+    }
+    Random random = new Random(SEED);
+    String[] statuses = { "??", "NO", "H21", "BK", "EB22", "EBEPUB", "READ", "Audio" };
+    File file = File.createTempFile("bench", ".tdf");
+    file.deleteOnExit();
+    try (BufferedWriter out = Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8)) {
+      out.write("# status as of a benchmark\n");
+      for (int i = 0; i < rows; i++) {
+        out.write(author(random));
+        out.write('\t');
+        out.write(title(random));
+        if (random.nextInt(4) == 0) {
+          out.write("\tfrom a friend");
+        }
+        out.write('\t');
+        out.write(statuses[random.nextInt(statuses.length)]);
+        out.write('\n');
+      }
+    }
+    return file;
+  }
+
+  /**
+   * @param movies how many movies
+   * @return a Netflix catalog
+   */
+  static NetflixCatalog catalog(int movies) {
+    Random random = new Random(SEED);
+    List<String> titles = new ArrayList<String>(movies);
+    List<Integer> years = new ArrayList<Integer>(movies);
+    for (int i = 0; i < movies; i++) {
+      titles.add(title(random));
+      years.add(1950 + random.nextInt(75));
+    }
+    return NetflixCatalog.of(titles, years);
+  }
+
+  // the contents of the file named by a system property, null if it isn't set.
+  private static String recorded(String property) {
+    String name = System.getProperty(property);
+    if (name == null) {
+      return null;
+    }
+    try {
+      return new String(Files.readAllBytes(Paths.get(name)), StandardCharsets.UTF_8);
+    } catch (IOException e) {
+      throw new IllegalStateException("could not read " + property + " fixture " + name, e);
+    }
+  }
+}
@@ -0,0 +1,47 @@
+package fam.fishkin.spl.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import fam.fishkin.spl.Format;
+
+/**
+ * Decoding formats, as found in the books file and on the web site.
+ * Every line of the file, and every result on a page, goes through one of these.
+ * @author Ken Fishkin
+ *
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FormatBenchmark {
+  private final String[] inFile = { "??", "NO", "XX", "H21", "BK", "Book", "EB22", "eBook20", "EBEPUB", "READ", "Audio", "junk" };
+  private final String[] onWeb = { "Book", "eBook", "Audiobook", "Video", "DVD", "" };
+
+  @Benchmark
+  public void fromFile(Blackhole bh) {
+    for (String status : inFile) {
+      bh.consume(Format.fromFile(status));
+    }
+  }
+
+  @Benchmark
+  public void fromWeb(Blackhole bh) {
+    for (String format : onWeb) {
+      bh.consume(Format.fromWeb(format));
+    }
+  }
+}
@@ -0,0 +1,179 @@
+package fam.fishkin.spl.bench;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLStreamException;
+
+import org.jsoup.Jsoup;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+import org.xml.sax.SAXException;
+
+import fam.fishkin.spl.BestMatch;
+import fam.fishkin.spl.Book;
+import fam.fishkin.spl.CandidateRecord;
+import fam.fishkin.spl.Candidates;
+import fam.fishkin.spl.Format;
+import fam.fishkin.spl.Movie;
+import fam.fishkin.spl.NetflixCatalog;
+import fam.fishkin.spl.NetflixDomain;
+import fam.fishkin.spl.SplDomain;
+import fam.fishkin.spl.SplRssDomain;
+import fam.fishkin.spl.WebHelper;
+
+/**
+ * Parsing a page of search results, and finding the best match among them, for each domain.
+ * @author Ken Fishkin
+ *
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MatchBenchmark {
+  // a page of results, as the site returns them.
+  @Param({ "20" })
+  public int results;
+  @Param({ "10000" })
+  public int movies;
+  // whether the movie looked up is in the catalog. Most aren't.
+  @Param({ "true", "false" })
+  public boolean onNetflix;
+
+  private String page;
+  private byte[] feed;
+  private Book wanted;
+  private SplDomain spl;
+  private SplRssDomain rss;
+  private Candidates pageCandidates;
+  private Candidates feedCandidates;
+  private NetflixDomain netflix;
+  private NetflixCatalog catalog;
+  private Movie wantedMovie;
+  private Candidates catalogCandidates;
+  // how the catalog was searched before the title index: the titles bucketed by their first two
+  // letters, and the whole bucket compared. Kept here as the baseline for netflixIndexLookup.
+  private Map<String, int[]> buckets;
+
+  @Setup
+  public void setUp() throws XMLStreamException, IOException {
+    page = Fixtures.resultsPage(results);
+    feed = Fixtures.rssFeed(results).getBytes(StandardCharsets.UTF_8);
+    wanted = new Book(Fixtures.WANTED_AUTHOR, Fixtures.WANTED_TITLE, "", Format.UNKNOWN);
+    spl = new SplDomain();
+    rss = new SplRssDomain();
+    pageCandidates = new Candidates(WebHelper.parseResults(Jsoup.parse(page)));
+    feedCandidates = new Candidates(WebHelper.parseRSS(new ByteArrayInputStream(feed)));
+    catalog = Fixtures.catalog(movies);
+    // the domain reads the catalog from a snapshot, as it does when it's been scraped recently.
+    File snapshot = File.createTempFile("catalog", ".bin");
+    snapshot.deleteOnExit();
+    catalog.save(snapshot);
+    netflix = new NetflixDomain();
+    netflix.setSnapshot(snapshot, Long.MAX_VALUE);
+    netflix.warmUp();
+    wantedMovie = onNetflix ? new Movie(catalog.title(movies / 2), catalog.year(movies / 2))
+        : new Movie("Margin Call", 2011);
+    catalogCandidates = netflix.findWebCandidates(wantedMovie);
+    Map<String, List<Integer>> building = new HashMap<String, List<Integer>>();
+    for (int i = 0; i < catalog.size(); i++) {
+      building.computeIfAbsent(bucketKey(catalog.title(i)), k -> new ArrayList<Integer>()).add(i);
+    }
+    buckets = new HashMap<String, int[]>();
+    for (Map.Entry<String, List<Integer>> entry : building.entrySet()) {
+      buckets.put(entry.getKey(), entry.getValue().stream().mapToInt(Integer::intValue).toArray());
+    }
+  }
+
+  // the old bucket key: the first two letters, lower case.
+  private static String bucketKey(String title) {
+    String key = title.toLowerCase();
+    return (key.length() < 2) ? key : key.substring(0, 2);
+  }
+
+  @Benchmark
+  public List<CandidateRecord> parsePage() {
+    return WebHelper.parseResults(Jsoup.parse(page));
+  }
+
+  @Benchmark
+  public List<CandidateRecord> parseFeed() throws XMLStreamException {
+    return WebHelper.parseRSS(new ByteArrayInputStream(feed));
+  }
+
+  // how the feed was read before the streaming parser: a whole DOM, then a search of each item per field.
+  // Kept here as the baseline for parseFeed.
+  @Benchmark
+  public List<String[]> parseFeedDom() throws ParserConfigurationException, SAXException, IOException {
+    org.w3c.dom.Document doc = DocumentBuilderFactory.newInstance().newDocumentBuilder()
+        .parse(new ByteArrayInputStream(feed));
+    NodeList items = doc.getElementsByTagName("item");
+    List<String[]> records = new ArrayList<String[]>();
+    for (int i = 0; i < items.getLength(); i++) {
+      Element item = (Element) items.item(i);
+      records.add(new String[] { field(item, "title"), field(item, "dc:creator"), field(item, "format") });
+    }
+    return records;
+  }
+
+  private static String field(Element item, String tagName) {
+    NodeList nodes = item.getElementsByTagName(tagName);
+    return (nodes.getLength() < 1) ? null : nodes.item(0).getTextContent();
+  }
+
+  @Benchmark
+  public BestMatch splFindBestMatch() {
+    return spl.findBestMatch(wanted, pageCandidates);
+  }
+
+  @Benchmark
+  public BestMatch rssFindBestMatch() {
+    return rss.findBestMatch(wanted, feedCandidates);
+  }
+
+  @Benchmark
+  public Candidates netflixTitleIndex() {
+    return netflix.findWebCandidates(wantedMovie);
+  }
+
+  @Benchmark
+  public BestMatch netflixFindBestMatch() {
+    return netflix.findBestMatch(wantedMovie, catalogCandidates);
+  }
+
+  // a whole lookup, the candidates and then the best of them, through the title index...
+  @Benchmark
+  public BestMatch netflixIndexLookup() {
+    return netflix.findBestMatch(wantedMovie, netflix.findWebCandidates(wantedMovie));
+  }
+
+  // ...and through the old first-two-letters buckets.
+  @Benchmark
+  public BestMatch netflixBucketScan() {
+    int[] rows = buckets.get(bucketKey(wantedMovie.getTitle()));
+    return netflix.findBestMatch(wantedMovie, new Candidates(catalog, (rows == null) ? new int[0] : rows));
+  }
+}
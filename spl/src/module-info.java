@@ -2,5 +2,17 @@ module spl {
   requires argparse4j;
   requires org.jsoup;
   requires java.base;
+  requires java.net.http;
+  requires java.xml;
+  requires java.management;
+  requires jdk.management;
+  requires jdk.httpserver;
+  requires jdk.jfr;
+  // optional: only used if the JVM is started with --add-modules jdk.incubator.vector.
+  requires static jdk.incubator.vector;
   requires transitive com.fasterxml.jackson.core;
+  // more -domain choices, from any jar on the path that provides them.
+  uses fam.fishkin.spl.MediaDomainProvider;
+  provides fam.fishkin.spl.MediaDomainProvider with fam.fishkin.spl.MediaDomains.SplProvider,
+      fam.fishkin.spl.MediaDomains.SplRssProvider, fam.fishkin.spl.MediaDomains.NetflixProvider;
 }
\ No newline at end of file
@@ -8,11 +8,15 @@ import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.nio.charset.Charset;
+import java.nio.file.Paths;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Calendar;
 
+import fam.fishkin.spl.BinaryWatchlist;
+
 /**
  * Performs I/O on tab-delimited-format (TDF) data files.
  * @author User
@@ -20,14 +24,17 @@ import java.util.Calendar;
  */
 public class TdfIO {
   final static  String COMMENT = "#";
+  final static String BINARY_EXTENSION = ".tdfb";
   /**
    * Read a file
    * @param fileName the file to read
    * @return the books in it.
    */
   public static Iterable<Book> Read(String fileName) {
+    if (fileName.toLowerCase().endsWith(BINARY_EXTENSION)) {
+      return readBinary(fileName);
+    }
     ArrayList<Book> bookList = new ArrayList<Book>();
-    final String splitOn = "\t";
     try {
       BufferedReader br = new BufferedReader(new FileReader(fileName));
       for (;;) {
@@ -40,35 +47,7 @@ public class TdfIO {
         if (line == null) {
           break;
         }
-        if (line.startsWith(COMMENT)) {
-          continue;
-        }
-        // each line is <author><title>[<recommender>]<status>,
-        // separated by tabs. Could use a CSV reader here, but it's so straightforwards, just do it
-        // by hand.
-        String[] args = line.split(splitOn);
-        int len = args.length;
-        if (len < 3) {
-          System.err.printf("only %d fields in line '%s' - need at least 3\n", len, line);
-          continue;
-        } else if (len > 4) {
-          System.err.printf("%d fields in line '%s' - need at most 4\n", len, line);
-          continue;
-        }
-        String author = args[0];
-        String title = args[1];
-        String recommender = args[2];
-        String status = "??";
-        if (len >= 4) {
-          status = args[3];
-        } else {
-          status = recommender;
-          recommender = "";
-        }
-        Format format = Format.fromFile(status);
-        Book book = new Book(author, title, recommender, format);
-        book.rawFormat = status;
-        bookList.add(book);
+        parseLine(line, bookList);
       }
       return bookList;
     } catch (FileNotFoundException e) {
@@ -77,8 +56,63 @@ public class TdfIO {
     }
   }
 
+  // parse one line, adding it to the list if it's a book.
+  private static void parseLine(String line, ArrayList<Book> bookList) {
+    if (line.startsWith(COMMENT)) {
+      return;
+    }
+    // each line is <author><title>[<recommender>]<status>,
+    // separated by tabs. Could use a CSV reader here, but it's so straightforwards, just do it
+    // by hand.
+    String[] args = line.split("\t");
+    int len = args.length;
+    if (len < 3) {
+      System.err.printf("only %d fields in line '%s' - need at least 3\n", len, line);
+      return;
+    } else if (len > 4) {
+      System.err.printf("%d fields in line '%s' - need at most 4\n", len, line);
+      return;
+    }
+    String author = args[0];
+    String title = args[1];
+    String recommender = args[2];
+    String status = "??";
+    if (len >= 4) {
+      status = args[3];
+    } else {
+      status = recommender;
+      recommender = "";
+    }
+    Format format = Format.fromFile(status);
+    Book book = new Book(author, title, recommender, format);
+    book.rawFormat = status;
+    bookList.add(book);
+  }
+
+  /**
+   * Read a binary books file, as written by fam.fishkin.spl.BinaryWatchlist: it's decoded
+   * back into the TDF file it stands for, whose lines are read just like any other.
+   * @param fileName the file to read
+   * @return the books in it.
+   */
+  public static Iterable<Book> readBinary(String fileName) {
+    ArrayList<Book> bookList = new ArrayList<Book>();
+    try {
+      BinaryWatchlist list = BinaryWatchlist.read(Paths.get(fileName));
+      String tdf = new String(list.toTdf(), list.getCharset());
+      for (String line : tdf.split("\r\n|\r|\n")) {
+        parseLine(line, bookList);
+      }
+      return bookList;
+    } catch (IOException | RuntimeException e) {
+      System.err.printf("could not read input file %s: %s\n", fileName, e);
+      return null;
+    }
+  }
+
   /**
-   * Write books to a file
+   * Write books to a file. A binary books file (ending in .tdfb) is written as the binary
+   * form of the TDF file it would otherwise get.
    * @param books the books
    * @param fileName the file
    */
@@ -88,6 +122,10 @@ public class TdfIO {
       System.err.printf("cannot write destination file %s\n", fileName);
       return;
     }    
+    if (fileName.toLowerCase().endsWith(BINARY_EXTENSION)) {
+      writeBinary(books, fileName);
+      return;
+    }
     // to protect against a crash in mid-write, write to a temp file,
     // then rename that temp file.
     File tempFile;
@@ -105,17 +143,7 @@ public class TdfIO {
       System.err.println("Could not create PrintWriter:" + e);
       return;
     }
-    DateFormat dateFormat = new SimpleDateFormat("EE, MMMM d yyyy");
-    Calendar cal = Calendar.getInstance();
-    out.printf("%s status as of %s\n", COMMENT, dateFormat.format(cal.getTime()));
-
-    for (Book book : books) {
-      out.printf("%s\t%s", book.author, book.title);
-      if (book.recommender != null && !book.recommender.isEmpty()) {
-        out.printf("\t%s", book.recommender);
-      }
-      out.printf("\t%s\n", book.rawFormat);
-    }
+    out.print(toTdf(books));
     out.close();
     try {
       if (!destFile.delete()) {
@@ -129,4 +157,31 @@ public class TdfIO {
     
   }
 
+  // the binary file writes itself through a temp file, so there's no need for one here.
+  private static void writeBinary(Iterable<Book> books, String fileName) {
+    Charset charset = Charset.defaultCharset();
+    try {
+      BinaryWatchlist.fromTdf(toTdf(books).getBytes(charset), charset).write(Paths.get(fileName));
+    } catch (IOException e) {
+      System.err.printf("could not write output file %s: %s\n", fileName, e);
+    }
+  }
+
+  // the TDF file for the books, with a status line at the top.
+  private static String toTdf(Iterable<Book> books) {
+    StringBuilder out = new StringBuilder();
+    DateFormat dateFormat = new SimpleDateFormat("EE, MMMM d yyyy");
+    Calendar cal = Calendar.getInstance();
+    out.append(String.format("%s status as of %s\n", COMMENT, dateFormat.format(cal.getTime())));
+
+    for (Book book : books) {
+      out.append(String.format("%s\t%s", book.author, book.title));
+      if (book.recommender != null && !book.recommender.isEmpty()) {
+        out.append(String.format("\t%s", book.recommender));
+      }
+      out.append(String.format("\t%s\n", book.rawFormat));
+    }
+    return out.toString();
+  }
+
 }
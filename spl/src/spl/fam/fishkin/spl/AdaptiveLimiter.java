@@ -0,0 +1,339 @@
+package fam.fishkin.spl;
+
+import java.net.URI;
+import java.net.http.HttpHeaders;
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Paces the requests to one web site, and (when adaptive) learns how hard it can push.
+ * While the site answers quickly, the request rate and the number of requests in flight
+ * creep up a little with every response (additive increase). A 429 or 503, a Retry-After,
+ * or a response much slower than usual cuts them both in half (multiplicative decrease).
+ * A Retry-After is always obeyed to the letter: nothing goes to the site until it has passed.
+ * With adaptation turned off, the rate stays at what {@link TokenBucket} was configured with,
+ * but throttling responses are still honoured.
+ * @author Ken Fishkin
+ *
+ */
+public class AdaptiveLimiter {
+  public static final double DEFAULT_MAX_RATE = 2.0;
+  // how much the rate goes up, in requests per second, after each healthy response.
+  private static final double RATE_STEP = 0.05;
+  private static final double DECREASE_FACTOR = 0.5;
+  // a response this many times slower than the running average counts as a latency spike.
+  private static final double SPIKE_FACTOR = 3.0;
+  // need this many responses before we trust the running average.
+  private static final int WARMUP_RESPONSES = 5;
+  private static final double LATENCY_WEIGHT = 0.2;
+
+  private static final Map<String, AdaptiveLimiter> limiters = new ConcurrentHashMap<String, AdaptiveLimiter>();
+  private static volatile boolean adaptive = false;
+  private static volatile double minRate = TokenBucket.DEFAULT_RATE;
+  private static volatile double maxRate = DEFAULT_MAX_RATE;
+  private static volatile int maxConcurrency = 1;
+
+  private final String host;
+  private final TokenBucket bucket;
+  private final boolean isAdaptive;
+  private final double floorRate;
+  private final double ceilingRate;
+  private final int ceilingConcurrency;
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition slotFree = lock.newCondition();
+  private double rate;
+  private int concurrencyLimit;
+  private int inFlight = 0;
+  private long blockedUntilNanos;
+  private double averageLatencyNanos = 0;
+  private long responses = 0;
+  private long backoffs = 0;
+  private long retryAfters = 0;
+
+  AdaptiveLimiter(String host, TokenBucket bucket, boolean isAdaptive, double floorRate, double ceilingRate,
+      int ceilingConcurrency) {
+    this.host = host;
+    this.bucket = bucket;
+    this.isAdaptive = isAdaptive;
+    this.floorRate = floorRate;
+    this.ceilingRate = Math.max(floorRate, ceilingRate);
+    this.ceilingConcurrency = Math.max(1, ceilingConcurrency);
+    this.rate = bucket.getRate();
+    // start cautiously and let the site tell us it can take more.
+    this.concurrencyLimit = isAdaptive ? 1 : Integer.MAX_VALUE;
+    this.blockedUntilNanos = System.nanoTime();
+  }
+
+  /**
+   * Sets how limiters created from now on behave.
+   * @param isAdaptive whether to adjust the rate and concurrency to how the site responds
+   * @param floor the lowest rate to back off to, in requests per second
+   * @param ceiling the highest rate to climb to, in requests per second
+   * @param concurrency the most requests to have in flight to one site
+   */
+  public static void configure(boolean isAdaptive, double floor, double ceiling, int concurrency) {
+    adaptive = isAdaptive;
+    minRate = floor;
+    maxRate = ceiling;
+    maxConcurrency = concurrency;
+    limiters.clear();
+  }
+
+  /**
+   * @param url a full URL
+   * @return the (shared) limiter for the URL's host
+   */
+  public static AdaptiveLimiter forUrl(String url) {
+    String host = null;
+    try {
+      host = URI.create(url).getHost();
+    } catch (IllegalArgumentException e) {
+      Log.error("could not parse host of %s\n", url);
+    }
+    return forKey(host);
+  }
+
+  /**
+   * @param key what's paced as one: usually a host, but can be narrower, e.g. a host and a path
+   * @return the (shared) limiter for the key
+   */
+  public static AdaptiveLimiter forKey(String key) {
+    String lower = (key == null) ? "" : key.toLowerCase();
+    return limiters.computeIfAbsent(lower, k -> new AdaptiveLimiter(k, TokenBucket.forHost(k), adaptive,
+        Math.min(minRate, TokenBucket.forHost(k).getRate()), maxRate, maxConcurrency));
+  }
+
+  /**
+   * @return every limiter in use
+   */
+  public static Collection<AdaptiveLimiter> all() {
+    return new ArrayList<AdaptiveLimiter>(limiters.values());
+  }
+
+  /**
+   * Blocks until the caller may send a request: there's a free slot, any Retry-After
+   * has passed, and the token bucket says it's our turn. Every acquire must be
+   * followed by exactly one {@link #onResponse} or {@link #onFailure}. A retry
+   * acquires again, so it waits out a Retry-After like any other request.
+   */
+  public void acquire() {
+    lock.lock();
+    try {
+      while (inFlight >= concurrencyLimit) {
+        slotFree.awaitUninterruptibly();
+      }
+      inFlight++;
+    } finally {
+      lock.unlock();
+    }
+    // a Retry-After can come in while we wait on the bucket (another request got it),
+    // so look again once it's our turn, and go back to the bucket if it did.
+    while (awaitUnblocked()) {
+      bucket.acquire();
+      if (remainingBlockNanos() <= 0) {
+        return;
+      }
+    }
+    bucket.acquire();
+  }
+
+  // sleeps until any Retry-After has passed; false if interrupted.
+  private boolean awaitUnblocked() {
+    long waitNanos;
+    while ((waitNanos = remainingBlockNanos()) > 0) {
+      try {
+        TimeUnit.NANOSECONDS.sleep(waitNanos);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private long remainingBlockNanos() {
+    lock.lock();
+    try {
+      return blockedUntilNanos - System.nanoTime();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Tell the limiter how a request went.
+   * @param statusCode the HTTP status
+   * @param latencyNanos how long the request took
+   * @param retryAfter the Retry-After the site sent, or null
+   */
+  public void onResponse(int statusCode, long latencyNanos, Duration retryAfter) {
+    lock.lock();
+    try {
+      release();
+      responses++;
+      boolean throttled = statusCode == 429 || statusCode == 503 || retryAfter != null;
+      boolean spike = responses > WARMUP_RESPONSES && latencyNanos > SPIKE_FACTOR * averageLatencyNanos;
+      if (retryAfter != null) {
+        retryAfters++;
+        blockedUntilNanos = Math.max(blockedUntilNanos, System.nanoTime() + retryAfter.toNanos());
+      }
+      if (!throttled) {
+        averageLatencyNanos = (averageLatencyNanos == 0) ? latencyNanos
+            : (1 - LATENCY_WEIGHT) * averageLatencyNanos + LATENCY_WEIGHT * latencyNanos;
+      }
+      if (!isAdaptive) {
+        return;
+      }
+      if (throttled || spike) {
+        backoffs++;
+        setRate(rate * DECREASE_FACTOR);
+        concurrencyLimit = Math.max(1, concurrencyLimit / 2);
+      } else {
+        setRate(rate + RATE_STEP);
+        if (concurrencyLimit < ceilingConcurrency) {
+          concurrencyLimit++;
+          slotFree.signalAll();
+        }
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * The request never got a response (e.g. a timeout or a dropped connection).
+   * Treated as a sign the site is struggling.
+   */
+  public void onFailure() {
+    lock.lock();
+    try {
+      release();
+      if (isAdaptive) {
+        backoffs++;
+        setRate(rate * DECREASE_FACTOR);
+        concurrencyLimit = Math.max(1, concurrencyLimit / 2);
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * The request turned out to be nearly free for the site (e.g. a 304), give its token back.
+   */
+  public void refund() {
+    bucket.refund();
+  }
+
+  // caller holds the lock.
+  private void release() {
+    inFlight--;
+    slotFree.signal();
+  }
+
+  // caller holds the lock.
+  private void setRate(double newRate) {
+    rate = Math.max(floorRate, Math.min(ceilingRate, newRate));
+    bucket.setRate(rate);
+  }
+
+  /**
+   * Parse a Retry-After header, which is either a number of seconds or an HTTP date.
+   * @param headers the response headers
+   * @return how long to wait, or null if there was no (usable) Retry-After.
+   */
+  public static Duration retryAfter(HttpHeaders headers) {
+    if (headers == null) {
+      return null;
+    }
+    Optional<String> value = headers.firstValue("Retry-After");
+    if (value.isEmpty() || value.get().isBlank()) {
+      return null;
+    }
+    String text = value.get().trim();
+    try {
+      return Duration.ofSeconds(Math.max(0, Long.parseLong(text)));
+    } catch (NumberFormatException e) {
+      // not seconds, try a date.
+    }
+    try {
+      ZonedDateTime when = ZonedDateTime.parse(text, DateTimeFormatter.RFC_1123_DATE_TIME);
+      Duration wait = Duration.between(ZonedDateTime.now(when.getZone()), when);
+      return wait.isNegative() ? Duration.ZERO : wait;
+    } catch (DateTimeParseException e) {
+      Log.error("could not parse Retry-After '%s'\n", text);
+      return null;
+    }
+  }
+
+  public String getHost() {
+    return host;
+  }
+
+  public double getRate() {
+    lock.lock();
+    try {
+      return rate;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  public int getInFlight() {
+    lock.lock();
+    try {
+      return inFlight;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  public int getConcurrencyLimit() {
+    lock.lock();
+    try {
+      return concurrencyLimit;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  public long getBackoffs() {
+    lock.lock();
+    try {
+      return backoffs;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  public long getRetryAfters() {
+    lock.lock();
+    try {
+      return retryAfters;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public String toString() {
+    lock.lock();
+    try {
+      String limit = (concurrencyLimit == Integer.MAX_VALUE) ? "unlimited" : Integer.toString(concurrencyLimit);
+      return String.format("%s: rate=%.2f/s, in flight=%d (limit %s), backoffs=%d, retry-afters=%d", host, rate,
+          inFlight, limit, backoffs, retryAfters);
+    } finally {
+      lock.unlock();
+    }
+  }
+}
@@ -1,7 +1,6 @@
 package fam.fishkin.spl;
 
-import org.jsoup.nodes.Element;
-import org.jsoup.select.Elements;
+import java.util.List;
 
 /**
  * Class for finding the best match to a desired title,
@@ -16,6 +15,8 @@ public class BestMatch {
   public String bestAuthor;
   public int authorDistance;
   public Format bestFormat;
+  // which library has it, null if that isn't known.
+  public String library;
   
   public BestMatch(MediaItem desired, String bestTitle, int titleDistance, String bestAuthor,
       int authorDistance, Format bestFormat) {
@@ -34,7 +35,7 @@ public class BestMatch {
   public String toString() {
     return "BestMatch: title=" + bestTitle + " ("
         + titleDistance + "), author=" + bestAuthor + " (" + authorDistance
-        + "), format =" + bestFormat + "]";
+        + "), format =" + bestFormat + ((library == null) ? "" : ", library=" + library) + "]";
   }
 
 
@@ -42,43 +43,44 @@ public class BestMatch {
   /**
    * Finds the best match to a desired book.
    * @param desired The desired book
-   * @param contentList the search results from the Web site.
+   * @param candidates the search results, from the web page or the RSS feed.
    * @return the Best match, null if none.
    */
-  public static BestMatch bestOnWeb(Book desired, Elements contentList) {
-    if (desired == null || contentList == null || contentList.isEmpty()) {
+  public static BestMatch bestOnWeb(MediaItem desired, List<CandidateRecord> candidates) {
+    if (desired == null || candidates == null || candidates.isEmpty()) {
       return null;
     }
     BestMatch best = new BestMatch(desired, null, Integer.MAX_VALUE, null, Integer.MAX_VALUE, Format.NO);
     // strip off everything after a ":" in the title - subheadings are in a different place on the web page,
     // and can vary too much.
-    int idx = desired.title.indexOf(':');
-    String compareTitle = (idx == -1) ? desired.title : desired.title.substring(0, idx);
+    String title = desired.getTitle();
+    int idx = title.indexOf(':');
+    String compareTitle = (idx == -1) ? title : title.substring(0, idx);
     compareTitle = compareTitle.trim().toLowerCase();
-    String compareAuthor = desired.author.trim().toLowerCase();
+    String compareAuthor = desired.getAuthor().trim().toLowerCase();
     
-    for (Element result: contentList) {
+    // every candidate is compared to the same title and author, so set those up once.
+    Distance.Query titleQuery = Distance.query(compareTitle);
+    Distance.Query authorQuery = Distance.query(compareAuthor);
+    // a candidate only counts if it's closer than the best so far, so the distance
+    // can stop as soon as it can't be.
+    for (CandidateRecord result: candidates) {
       BestMatch bestThisItem = new BestMatch(desired, null, Integer.MAX_VALUE, null, Integer.MAX_VALUE, Format.UNKNOWN);
-      Element titleElt = result.selectFirst("h2.cp-title span.title-content");
-      int dist = Distance.LevenshteinDistance(compareTitle, titleElt.text().trim().toLowerCase());
+      int dist = titleQuery.distanceAtMost(result.matchTitle, best.titleDistance - 1);
       if (dist < best.titleDistance) {
         bestThisItem.titleDistance = dist;
-        bestThisItem.bestTitle = titleElt.text().trim();
+        bestThisItem.bestTitle = result.title;
       }
-      Elements authorElts = result.select("span.cp-author-link");
-      for (Element authorElt: authorElts) {
-        dist = Distance.LevenshteinDistance(compareAuthor, authorElt.text().trim().toLowerCase());
+      for (int i = 0; i < result.authors.size(); i++) {
+        dist = authorQuery.distanceAtMost(result.matchAuthors.get(i), best.authorDistance - 1);
         if (dist < best.authorDistance) {
           bestThisItem.authorDistance = dist;
-          bestThisItem.bestAuthor = authorElt.text().trim();
+          bestThisItem.bestAuthor = result.authors.get(i);
         }
       }
-      Elements formatElts = result.select("span.cp-format-indicator");
-      for (Element formatElt : formatElts) {
-        Format format = Format.fromWeb(formatElt.text());
-        if (format.value > best.bestFormat.value) {
-          bestThisItem.bestFormat = format;
-        }
+      Format format = result.bestFormat();
+      if (format.value > best.bestFormat.value) {
+        bestThisItem.bestFormat = format;
       }
       if (bestThisItem.titleDistance <= best.titleDistance
           && bestThisItem.authorDistance <= best.authorDistance) {
@@ -0,0 +1,657 @@
+package fam.fishkin.spl;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A books file in binary, column by column, for big lists. It loads much faster than the
+ * tab-delimited (TDF) text, since nothing has to be split or decoded a line at a time, and
+ * it's smaller: each author and recommender is kept once, and each status as a prefix, a year
+ * and the {@link Format} it stands for. Books files whose names end in {@link #EXTENSION} are
+ * kept this way.
+ * <p>
+ * It holds everything the TDF file did, so converting TDF to binary and back gives back the same
+ * bytes. Lines that aren't plain books (comments, bad lines, books with stray tabs) are kept
+ * as text, and read just as they would be from a TDF file.
+ * <p>
+ * The layout, big-endian:
+ * <pre>
+ *   "SPLB", version (short), the TDF charset (UTF), line count (int), book count (int),
+ *   then the offset (long) of each section, in this order:
+ *   LINES        a byte per line: its kind (KIND_*), plus its line end (END_*) &lt;&lt; 2
+ *   AUTHOR_NAMES, RECOMMENDER_NAMES, STATUS_PREFIXES   the distinct values: strings
+ *   AUTHORS, RECOMMENDERS, PREFIXES   an int per book: which value it has
+ *   TITLES       strings, one per book
+ *   FORMATS      a byte per book: its Format's ordinal
+ *   YEARS        a short per book: the number after the status prefix, -1 if there isn't one
+ *   TEXT         strings, one per text line
+ * </pre>
+ * Strings are a count, then count + 1 int offsets, then the bytes, in the TDF charset.
+ * @author Ken Fishkin
+ *
+ */
+public class BinaryWatchlist {
+  public static final String EXTENSION = ".tdfb";
+  private static final byte[] MAGIC = { 'S', 'P', 'L', 'B' };
+  private static final short VERSION = 1;
+  private static final int SECTIONS = 11;
+
+  // the kinds of line.
+  private static final int KIND_BOOK3 = 0; // author, title, status
+  private static final int KIND_BOOK4 = 1; // author, title, recommender, status
+  private static final int KIND_TEXT = 2;
+  // how a line ends.
+  private static final int END_LF = 0;
+  private static final int END_CRLF = 1;
+  private static final int END_CR = 2;
+  private static final int END_NONE = 3;
+  private static final byte[][] ENDS = { { '\n' }, { '\r', '\n' }, { '\r' }, {} };
+
+  private final Charset charset;
+  private byte[] lines;
+  private final Column authors = new Column();
+  private final Column recommenders = new Column();
+  private final Column prefixes = new Column();
+  // one entry per book, for the first bookCount entries.
+  private int bookCount = 0;
+  private byte[][] titles = new byte[16][];
+  private byte[] formats = new byte[16];
+  private short[] years = new short[16];
+  private final List<byte[]> text = new ArrayList<byte[]>();
+  // for each line, which book or text line it is, so a status can be found without counting lines.
+  private int[] entries = new int[0];
+
+  // a dictionary-encoded column: the distinct values, and which one each book has.
+  private static class Column {
+    final List<byte[]> values = new ArrayList<byte[]>();
+    final Map<ByteBuffer, Integer> indexOf = new HashMap<ByteBuffer, Integer>();
+    int[] rows = new int[16];
+
+    int code(byte[] value) {
+      Integer index = indexOf.get(ByteBuffer.wrap(value));
+      if (index == null) {
+        index = values.size();
+        values.add(value);
+        indexOf.put(ByteBuffer.wrap(value), index);
+      }
+      return index;
+    }
+
+    void set(int row, byte[] value) {
+      rows[row] = code(value);
+    }
+
+    byte[] get(int row) {
+      return values.get(rows[row]);
+    }
+  }
+
+  private BinaryWatchlist(Charset charset, int lineCount) {
+    this.charset = charset;
+    this.lines = new byte[lineCount];
+  }
+
+  // make room for (count) books.
+  private void setBookCount(int count) {
+    if (count > titles.length) {
+      int capacity = Math.max(count, 2 * titles.length);
+      titles = Arrays.copyOf(titles, capacity);
+      formats = Arrays.copyOf(formats, capacity);
+      years = Arrays.copyOf(years, capacity);
+      authors.rows = Arrays.copyOf(authors.rows, capacity);
+      recommenders.rows = Arrays.copyOf(recommenders.rows, capacity);
+      prefixes.rows = Arrays.copyOf(prefixes.rows, capacity);
+    }
+    bookCount = count;
+  }
+
+  /**
+   * @param fileName a books file name
+   * @return true if it's kept in binary
+   */
+  public static boolean isBinary(String fileName) {
+    return fileName != null && fileName.toLowerCase().endsWith(EXTENSION);
+  }
+
+  /**
+   * Read the books in a binary books file, as {@link SplDomain#readFile} would from the TDF.
+   * @param fileName the file
+   * @return the books, in file order. null if the file can't be read.
+   */
+  public static List<MediaItem> load(String fileName) {
+    Events.ReadFile event = new Events.ReadFile();
+    event.begin();
+    BinaryWatchlist list;
+    try {
+      list = read(Paths.get(fileName));
+    } catch (IOException e) {
+      Log.error("could not read input file %s\n", fileName);
+      return null;
+    }
+    List<MediaItem> books = list.books();
+    event.record(fileName, 0, new File(fileName).length(), books.size());
+    return books;
+  }
+
+  /**
+   * Convert a TDF books file to binary, or back, going by the file names.
+   * @param args the file to convert, and the file to write
+   */
+  public static void main(String[] args) {
+    if (args.length != 2) {
+      System.err.printf("usage: BinaryWatchlist <from> <to>, one of them ending in %s\n", EXTENSION);
+      System.exit(1);
+    }
+    try {
+      Path from = Paths.get(args[0]);
+      Path to = Paths.get(args[1]);
+      if (isBinary(args[0])) {
+        write(to, read(from).toTdf());
+      } else {
+        fromTdf(Files.readAllBytes(from), Charset.defaultCharset()).write(to);
+      }
+    } catch (IOException e) {
+      System.err.printf("could not convert %s to %s: %s\n", args[0], args[1], e);
+      System.exit(1);
+    }
+  }
+
+  /**
+   * Encode the contents of a TDF books file.
+   * @param tdf the file's bytes
+   * @param charset what they're in
+   * @return the books file, ready to write
+   */
+  public static BinaryWatchlist fromTdf(byte[] tdf, Charset charset) {
+    List<Byte> kinds = new ArrayList<Byte>();
+    BinaryWatchlist list = new BinaryWatchlist(charset, 0);
+    int pos = 0;
+    while (pos < tdf.length) {
+      // a line ends at \n, \r or \r\n, as for BufferedReader.readLine.
+      int end = pos;
+      while (end < tdf.length && tdf[end] != '\n' && tdf[end] != '\r') {
+        end++;
+      }
+      int lineEnd = END_NONE;
+      int next = end;
+      if (end < tdf.length && tdf[end] == '\n') {
+        lineEnd = END_LF;
+        next = end + 1;
+      } else if (end + 1 < tdf.length && tdf[end] == '\r' && tdf[end + 1] == '\n') {
+        lineEnd = END_CRLF;
+        next = end + 2;
+      } else if (end < tdf.length) {
+        lineEnd = END_CR;
+        next = end + 1;
+      }
+      byte[] line = new byte[end - pos];
+      System.arraycopy(tdf, pos, line, 0, line.length);
+      kinds.add((byte) (list.addLine(line) | (lineEnd << 2)));
+      pos = next;
+    }
+    list.lines = new byte[kinds.size()];
+    for (int i = 0; i < list.lines.length; i++) {
+      list.lines[i] = kinds.get(i);
+    }
+    list.indexLines();
+    return list;
+  }
+
+  // add a line's contents to the columns, or the text. Returns its kind.
+  private int addLine(byte[] line) {
+    List<byte[]> fields = new ArrayList<byte[]>();
+    int start = 0;
+    for (int i = 0; i <= line.length; i++) {
+      if (i == line.length || line[i] == '\t') {
+        byte[] field = new byte[i - start];
+        System.arraycopy(line, start, field, 0, field.length);
+        fields.add(field);
+        start = i + 1;
+      }
+    }
+    // only a line that reads as a book, and would be written back the same, goes in the columns.
+    int count = fields.size();
+    if (line.length == 0 || line[0] == SplDomain.COMMENT.charAt(0) || count < 3 || count > 4
+        || fields.get(count - 1).length == 0) {
+      text.add(line);
+      return KIND_TEXT;
+    }
+    int book = bookCount;
+    setBookCount(book + 1);
+    authors.set(book, fields.get(0));
+    titles[book] = fields.get(1);
+    recommenders.set(book, (count == 4) ? fields.get(2) : new byte[0]);
+    putStatus(book, fields.get(count - 1));
+    return (count == 4) ? KIND_BOOK4 : KIND_BOOK3;
+  }
+
+  // a status is a prefix, then maybe a year. The year is split off only if it would be written back the same.
+  private void putStatus(int book, byte[] status) {
+    int digits = status.length;
+    while (digits > 1 && status[digits - 1] >= '0' && status[digits - 1] <= '9') {
+      digits--;
+    }
+    int split = status.length;
+    short year = -1;
+    if (status.length - digits >= 1 && status.length - digits <= 4
+        && (status[digits] != '0' || status.length - digits == 1)) {
+      split = digits;
+      year = Short.parseShort(new String(status, split, status.length - split, StandardCharsets.US_ASCII));
+    }
+    byte[] prefix = new byte[split];
+    System.arraycopy(status, 0, prefix, 0, split);
+    prefixes.set(book, prefix);
+    years[book] = year;
+    formats[book] = (byte) Format.fromFile(new String(status, charset)).ordinal();
+  }
+
+  // number the lines' books and text lines, in file order.
+  private void indexLines() {
+    entries = new int[lines.length];
+    int book = 0;
+    int textLine = 0;
+    for (int row = 0; row < lines.length; row++) {
+      entries[row] = ((lines[row] & 3) == KIND_TEXT) ? textLine++ : book++;
+    }
+  }
+
+  private byte[] status(int book) {
+    byte[] prefix = prefixes.get(book);
+    short year = years[book];
+    if (year < 0) {
+      return prefix;
+    }
+    byte[] digits = Short.toString(year).getBytes(StandardCharsets.US_ASCII);
+    byte[] status = new byte[prefix.length + digits.length];
+    System.arraycopy(prefix, 0, status, 0, prefix.length);
+    System.arraycopy(digits, 0, status, prefix.length, digits.length);
+    return status;
+  }
+
+  /**
+   * @return the books, in file order, each knowing which line it's on (its row).
+   */
+  public List<MediaItem> books() {
+    // decode each distinct author and recommender once, and share it.
+    String[] authorNames = decode(authors.values);
+    String[] recommenderNames = decode(recommenders.values);
+    Format[] byOrdinal = Format.values();
+    // and each distinct status: there are only a handful.
+    Map<Long, String> statuses = new HashMap<Long, String>();
+    List<MediaItem> books = new ArrayList<MediaItem>(bookCount);
+    int book = 0;
+    int textLine = 0;
+    for (int row = 0; row < lines.length; row++) {
+      Book parsed;
+      if ((lines[row] & 3) == KIND_TEXT) {
+        parsed = TdfLoader.parseLine(new String(text.get(textLine++), charset));
+        if (parsed == null) {
+          continue;
+        }
+      } else {
+        parsed = new Book(authorNames[authors.rows[book]], new String(titles[book], charset),
+            recommenderNames[recommenders.rows[book]], byOrdinal[formats[book]]);
+        long key = ((long) prefixes.rows[book] << 16) | (years[book] & 0xffff);
+        String status = statuses.get(key);
+        if (status == null) {
+          status = new String(status(book), charset);
+          statuses.put(key, status);
+        }
+        parsed.rawFormat = status;
+        book++;
+      }
+      parsed.row = row;
+      parsed.fileRawFormat = parsed.rawFormat;
+      books.add(parsed);
+    }
+    return books;
+  }
+
+  private String[] decode(List<byte[]> values) {
+    String[] decoded = new String[values.size()];
+    for (int i = 0; i < decoded.length; i++) {
+      decoded[i] = new String(values.get(i), charset);
+    }
+    return decoded;
+  }
+
+  /**
+   * @return the charset of the TDF file this stands for
+   */
+  public Charset getCharset() {
+    return charset;
+  }
+
+  /**
+   * @return the TDF file this stands for
+   */
+  public byte[] toTdf() {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    int book = 0;
+    int textLine = 0;
+    for (byte line : lines) {
+      int kind = line & 3;
+      if (kind == KIND_TEXT) {
+        out.writeBytes(text.get(textLine++));
+      } else {
+        out.writeBytes(authors.get(book));
+        out.write('\t');
+        out.writeBytes(titles[book]);
+        if (kind == KIND_BOOK4) {
+          out.write('\t');
+          out.writeBytes(recommenders.get(book));
+        }
+        out.write('\t');
+        out.writeBytes(status(book));
+        book++;
+      }
+      out.writeBytes(ENDS[(line >> 2) & 3]);
+    }
+    return out.toByteArray();
+  }
+
+  /**
+   * Change a line's status.
+   * @param row the line, as in a book's row
+   * @param before what the status was when the book was read
+   * @param after what it is now
+   * @return false if the line doesn't have that status any more.
+   */
+  boolean setStatus(int row, String before, String after) {
+    if (row < 0 || row >= lines.length) {
+      return false;
+    }
+    if ((lines[row] & 3) != KIND_TEXT) {
+      int book = entries[row];
+      if (!new String(status(book), charset).equals(before)) {
+        return false;
+      }
+      putStatus(book, after.getBytes(charset));
+      return true;
+    }
+    // a book kept as text: its status is the last field that isn't empty.
+    int textLine = entries[row];
+    String line = new String(text.get(textLine), charset);
+    String[] fields = line.split("\t", -1);
+    int last = fields.length - 1;
+    while (last > 0 && fields[last].isEmpty()) {
+      last--;
+    }
+    if (!fields[last].equals(before)) {
+      return false;
+    }
+    fields[last] = after;
+    text.set(textLine, String.join("\t", fields).getBytes(charset));
+    return true;
+  }
+
+  /**
+   * Set the "status as of" line at the top, adding it if there isn't one.
+   * @param statusLine the line, without its line end
+   */
+  void setStatusLine(String statusLine) {
+    String prefix = SplDomain.COMMENT + " status as of ";
+    if (lines.length > 0 && (lines[0] & 3) == KIND_TEXT && new String(text.get(0), charset).startsWith(prefix)) {
+      text.set(0, statusLine.getBytes(charset));
+      return;
+    }
+    byte[] more = new byte[lines.length + 1];
+    more[0] = (byte) (KIND_TEXT | (END_LF << 2));
+    System.arraycopy(lines, 0, more, 1, lines.length);
+    lines = more;
+    text.add(0, statusLine.getBytes(charset));
+    // the new line comes first, so every row moves down one.
+    indexLines();
+  }
+
+  /**
+   * Read a binary books file.
+   * @param path the file
+   * @return what's in it
+   * @throws IOException if it can't be read, or isn't one
+   */
+  public static BinaryWatchlist read(Path path) throws IOException {
+    ByteBuffer in = ByteBuffer.wrap(Files.readAllBytes(path));
+    try {
+      byte[] magic = new byte[MAGIC.length];
+      in.get(magic);
+      short version = in.getShort();
+      if (!Arrays.equals(magic, MAGIC) || version != VERSION) {
+        throw new IOException(path + " is not a version " + VERSION + " binary books file");
+      }
+      byte[] name = new byte[in.getShort() & 0xffff];
+      in.get(name);
+      Charset charset = Charset.forName(new String(name, StandardCharsets.UTF_8));
+      int lineCount = in.getInt();
+      int bookCount = in.getInt();
+      long[] offsets = new long[SECTIONS];
+      for (int i = 0; i < SECTIONS; i++) {
+        offsets[i] = in.getLong();
+      }
+      BinaryWatchlist list = new BinaryWatchlist(charset, lineCount);
+      in.position((int) offsets[0]);
+      in.get(list.lines);
+      in.position((int) offsets[1]);
+      list.authors.values.addAll(readStrings(in));
+      in.position((int) offsets[2]);
+      list.recommenders.values.addAll(readStrings(in));
+      in.position((int) offsets[3]);
+      list.prefixes.values.addAll(readStrings(in));
+      list.setBookCount(bookCount);
+      in.position((int) offsets[4]);
+      readCodes(in, bookCount, list.authors);
+      in.position((int) offsets[5]);
+      readCodes(in, bookCount, list.recommenders);
+      in.position((int) offsets[6]);
+      readCodes(in, bookCount, list.prefixes);
+      in.position((int) offsets[7]);
+      List<byte[]> titles = readStrings(in);
+      if (titles.size() != bookCount) {
+        throw new IOException(path + " has " + titles.size() + " titles for " + bookCount + " books");
+      }
+      titles.toArray(list.titles);
+      in.position((int) offsets[8]);
+      in.get(list.formats, 0, bookCount);
+      for (int i = 0; i < bookCount; i++) {
+        if (list.formats[i] < 0 || list.formats[i] >= Format.values().length) {
+          throw new IOException(path + " has an unknown format, " + list.formats[i]);
+        }
+      }
+      in.position((int) offsets[9]);
+      in.asShortBuffer().get(list.years, 0, bookCount);
+      in.position((int) offsets[10]);
+      list.text.addAll(readStrings(in));
+      list.indexLines();
+      return list;
+    } catch (BufferUnderflowException | IllegalArgumentException | IndexOutOfBoundsException e) {
+      throw new IOException(path + " is not a binary books file: " + e);
+    }
+  }
+
+  private static List<byte[]> readStrings(ByteBuffer in) {
+    int count = in.getInt();
+    int[] offsets = new int[count + 1];
+    for (int i = 0; i <= count; i++) {
+      offsets[i] = in.getInt();
+    }
+    List<byte[]> strings = new ArrayList<byte[]>(count);
+    for (int i = 0; i < count; i++) {
+      byte[] s = new byte[offsets[i + 1] - offsets[i]];
+      in.get(s);
+      strings.add(s);
+    }
+    return strings;
+  }
+
+  private static void readCodes(ByteBuffer in, int count, Column column) throws IOException {
+    in.asIntBuffer().get(column.rows, 0, count);
+    for (int i = 0; i < count; i++) {
+      if (column.rows[i] < 0 || column.rows[i] >= column.values.size()) {
+        throw new IOException("value " + column.rows[i] + " of " + column.values.size());
+      }
+    }
+    for (int i = 0; i < column.values.size(); i++) {
+      column.indexOf.put(ByteBuffer.wrap(column.values.get(i)), i);
+    }
+  }
+
+  /**
+   * Write this to a file, through a temp file next to it, so a crash can't leave half a file.
+   * @param path the file
+   * @throws IOException if it can't be written
+   */
+  public void write(Path path) throws IOException {
+    ByteArrayOutputStream[] sections = new ByteArrayOutputStream[SECTIONS];
+    for (int i = 0; i < SECTIONS; i++) {
+      sections[i] = new ByteArrayOutputStream();
+    }
+    sections[0].writeBytes(lines);
+    writeStrings(sections[1], authors.values);
+    writeStrings(sections[2], recommenders.values);
+    writeStrings(sections[3], prefixes.values);
+    writeCodes(sections[4], authors.rows, bookCount);
+    writeCodes(sections[5], recommenders.rows, bookCount);
+    writeCodes(sections[6], prefixes.rows, bookCount);
+    writeStrings(sections[7], Arrays.asList(titles).subList(0, bookCount));
+    sections[8].write(formats, 0, bookCount);
+    DataOutputStream yearOut = new DataOutputStream(sections[9]);
+    for (int i = 0; i < bookCount; i++) {
+      yearOut.writeShort(years[i]);
+    }
+    writeStrings(sections[10], text);
+
+    ByteArrayOutputStream file = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(file);
+    out.write(MAGIC);
+    out.writeShort(VERSION);
+    out.writeUTF(charset.name());
+    out.writeInt(lines.length);
+    out.writeInt(bookCount);
+    long offset = out.size() + 8L * SECTIONS;
+    for (ByteArrayOutputStream section : sections) {
+      out.writeLong(offset);
+      offset += section.size();
+    }
+    for (ByteArrayOutputStream section : sections) {
+      section.writeTo(out);
+    }
+    write(path, file.toByteArray());
+  }
+
+  private static void writeStrings(ByteArrayOutputStream section, List<byte[]> strings) throws IOException {
+    DataOutputStream out = new DataOutputStream(section);
+    out.writeInt(strings.size());
+    int offset = 0;
+    out.writeInt(offset);
+    for (byte[] s : strings) {
+      offset += s.length;
+      out.writeInt(offset);
+    }
+    for (byte[] s : strings) {
+      out.write(s);
+    }
+  }
+
+  private static void writeCodes(ByteArrayOutputStream section, int[] codes, int count) throws IOException {
+    DataOutputStream out = new DataOutputStream(section);
+    for (int i = 0; i < count; i++) {
+      out.writeInt(codes[i]);
+    }
+  }
+
+  // replace a file's contents in one step.
+  private static void write(Path path, byte[] contents) throws IOException {
+    Path target = path.toAbsolutePath();
+    Path temp = Files.createTempFile(target.getParent(), target.getFileName().toString(), ".tmp");
+    try {
+      if (Files.exists(target)) {
+        SplDomain.copyPermissions(target, temp);
+      }
+      Files.write(temp, contents);
+      try {
+        Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+      } catch (AtomicMoveNotSupportedException e) {
+        Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+      }
+    } finally {
+      Files.deleteIfExists(temp);
+    }
+  }
+
+  /**
+   * An update of a binary books file: the changed statuses are held until the end, then
+   * put in, and the file written again.
+   */
+  public static class Update implements MediaDomain.Update {
+    private final File file;
+    private final String statusLine;
+    // line -> the status before, and after.
+    private final Map<Integer, String[]> changes = new HashMap<Integer, String[]>();
+    private int unplaced = 0;
+
+    /**
+     * @param file the books file the books were read from
+     * @param statusLine the new first line, without its line end
+     */
+    public Update(File file, String statusLine) {
+      this.file = file;
+      this.statusLine = statusLine;
+    }
+
+    @Override
+    public void add(MediaItem item) {
+      if (!(item instanceof Book)) {
+        return;
+      }
+      Book book = (Book) item;
+      if (book.row < 0 || book.fileRawFormat == null) {
+        unplaced++;
+        return;
+      }
+      if (!book.rawFormat.equals(book.fileRawFormat)) {
+        changes.put(book.row, new String[] { book.fileRawFormat, book.rawFormat });
+      }
+    }
+
+    @Override
+    public boolean finish() {
+      if (unplaced > 0) {
+        Log.error("%d books weren't read from %s, and can't be put in it\n", unplaced, file);
+      }
+      Events.UpdateFile event = new Events.UpdateFile();
+      event.begin();
+      try {
+        BinaryWatchlist list = read(file.toPath());
+        for (Map.Entry<Integer, String[]> change : changes.entrySet()) {
+          if (!list.setStatus(change.getKey(), change.getValue()[0], change.getValue()[1])) {
+            Log.error("%s changed during the run, not updating it\n", file);
+            return false;
+          }
+        }
+        list.setStatusLine(statusLine);
+        list.write(file.toPath());
+        event.record(file.toString(), changes.size(), file.length());
+        return unplaced == 0;
+      } catch (IOException e) {
+        Log.error("could not update %s: %s\n", file, e);
+        return false;
+      }
+    }
+  }
+}
@@ -11,6 +11,12 @@ public class Book implements Comparable<Book>, MediaItem {
   private Format format;
   public String recommender;
   public String rawFormat;
+  // where rawFormat is in the books file the book was read from, in bytes, and what it was there.
+  // -1 and null if that isn't known.
+  public long statusOffset = -1;
+  public String fileRawFormat = null;
+  // which line of a binary books file the book was read from, -1 if it wasn't read from one.
+  public int row = -1;
 
   public String toString() {
     String answer = author + ":" + title;
@@ -46,7 +52,7 @@ public class Book implements Comparable<Book>, MediaItem {
    * Upgrade a book to a more desirable format.
    */
   public void upgrade(Format newFormat, int year) {
-    System.out.printf("UPGRADE of %s to %s\n", this.toString(), newFormat.toString());
+    Log.verbose("UPGRADE of %s to %s\n", this.toString(), newFormat.toString());
     this.format = newFormat;
     String prefix = newFormat.fileFormats.iterator().next();
     // put the last 2 digits of the year.
@@ -0,0 +1,102 @@
+package fam.fishkin.spl;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.jsoup.nodes.Element;
+import org.jsoup.select.Evaluator;
+import org.jsoup.select.QueryParser;
+
+/**
+ * One search result, boiled down to what we match on: the title, the authors, and the
+ * formats it comes in. It's pulled out of the web page or feed once, when the results
+ * are fetched, so the page itself can be thrown away straight after, and matching
+ * doesn't have to go back to it.
+ * @author Ken Fishkin
+ *
+ */
+public class CandidateRecord {
+  // compiled once: parsing a selector for every result adds up.
+  private static final Evaluator TITLE = QueryParser.parse("h2.cp-title span.title-content");
+  private static final Evaluator AUTHOR = QueryParser.parse("span.cp-author-link");
+  private static final Evaluator FORMAT = QueryParser.parse("span.cp-format-indicator");
+
+  /** the title, as shown */
+  public final String title;
+  /** the authors, as shown. May be empty, never null. */
+  public final List<String> authors;
+  /** the formats, as a bitmask of 1 &lt;&lt; {@link Format#ordinal()} */
+  public final int formats;
+  /** the title as it's matched: trimmed and lower case */
+  public final String matchTitle;
+  /** the authors as they're matched: trimmed and lower case */
+  public final List<String> matchAuthors;
+
+  public CandidateRecord(String title, List<String> authors, int formats) {
+    this.title = title;
+    this.authors = Collections.unmodifiableList(new ArrayList<String>(authors));
+    this.formats = formats;
+    this.matchTitle = title.trim().toLowerCase();
+    List<String> normalized = new ArrayList<String>(authors.size());
+    for (String author : authors) {
+      normalized.add(author.trim().toLowerCase());
+    }
+    this.matchAuthors = Collections.unmodifiableList(normalized);
+  }
+
+  /**
+   * Pull a record out of one result on a bibliocommons search page.
+   * @param result the result's div
+   * @return the record, null if the result has no title.
+   */
+  public static CandidateRecord fromWeb(Element result) {
+    Element titleElt = result.selectFirst(TITLE);
+    if (titleElt == null) {
+      return null;
+    }
+    List<String> authors = new ArrayList<String>();
+    for (Element authorElt : result.select(AUTHOR)) {
+      authors.add(authorElt.text().trim());
+    }
+    int formats = 0;
+    for (Element formatElt : result.select(FORMAT)) {
+      formats |= 1 << Format.fromWeb(formatElt.text()).ordinal();
+    }
+    return new CandidateRecord(titleElt.text().trim(), authors, formats);
+  }
+
+  /**
+   * Make a record from one item of an RSS search result.
+   * @param title the item's title
+   * @param creator its dc:creator, null if none
+   * @param format its format, null if none
+   * @return the record, null if the item has no title.
+   */
+  public static CandidateRecord fromRss(String title, String creator, String format) {
+    if (title == null) {
+      return null;
+    }
+    List<String> authors = (creator == null) ? Collections.<String>emptyList() : Collections.singletonList(creator);
+    Format f = (format == null) ? Format.UNKNOWN : Format.fromWeb(format);
+    return new CandidateRecord(title, authors, 1 << f.ordinal());
+  }
+
+  /**
+   * @return the most desirable of the formats, UNKNOWN if there are none.
+   */
+  public Format bestFormat() {
+    Format best = Format.UNKNOWN;
+    for (Format format : Format.values()) {
+      if ((formats & (1 << format.ordinal())) != 0 && format.value > best.value) {
+        best = format;
+      }
+    }
+    return best;
+  }
+
+  @Override
+  public String toString() {
+    return "CandidateRecord: title=" + title + ", authors=" + authors + ", format=" + bestFormat();
+  }
+}
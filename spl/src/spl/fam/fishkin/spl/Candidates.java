@@ -1,31 +1,47 @@
 package fam.fishkin.spl;
 
-import java.util.Vector;
-
-import org.jsoup.select.Elements;
-import org.w3c.dom.Node;
+import java.util.List;
 
 /**
  * Encapsulates the set of candidates in response to a query.
- * If the query is scraping the web page, the candidates are a set of JSoup elements.
- * If the query comes back as RSS, it's an XML doc.
- * This is therefore a union type, which is a bit of a kludge...
+ * If the query went to the web site, as a page or as RSS, the candidates are the records
+ * pulled out of the results.
+ * If the query is against a catalog we already have, it's the rows of the catalog to look at.
+ * If the query went to several libraries at once, it's each library's candidates.
  * @author Us
  *
  */
 public class Candidates {
-	private Elements asElements = null;
-	private Vector<Node> asNodeVector = null;
+	private List<CandidateRecord> asRecords = null;
+	private NetflixCatalog catalog = null;
+	private int[] catalogRows = null;
+	private Candidates[] parts = null;
 	
-	public Candidates(Elements asElements) {
-		this.asElements = asElements;
+	public Candidates(List<CandidateRecord> asRecords) {
+		this.asRecords = asRecords;
 	}
 	
-	public Candidates(Vector<Node> asNodeList) {
-		this.asNodeVector = asNodeList;
+	public Candidates(NetflixCatalog catalog, int[] rows) {
+		this.catalog = catalog;
+		this.catalogRows = rows;
+	}
+
+	private Candidates() {
+	}
+
+	/**
+	 * @param parts each library's candidates
+	 * @return the candidates from several libraries
+	 */
+	public static Candidates ofParts(Candidates[] parts) {
+		Candidates candidates = new Candidates();
+		candidates.parts = parts;
+		return candidates;
 	}
 	
-	public Elements asElements() { return asElements; }
-	public  Vector<Node> asNodeList() { return asNodeVector; }
+	public List<CandidateRecord> asRecords() { return asRecords; }
+	public NetflixCatalog asCatalog() { return catalog; }
+	public int[] asCatalogRows() { return catalogRows; }
+	public Candidates[] asParts() { return parts; }
 
 }
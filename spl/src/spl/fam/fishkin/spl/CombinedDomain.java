@@ -0,0 +1,153 @@
+package fam.fishkin.spl;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+
+/**
+ * Several domains looking up the same list, e.g. 'spl' and 'splrss' on one books file,
+ * so the list is read and written once however many domains check it. Each item is looked up
+ * in every domain at the same time, each at its own pace; the best match is the best of the
+ * domains' best matches. A domain that doesn't handle an item (e.g. a movie, for a library)
+ * just has no candidates for it.
+ * <p>
+ * The list is read and written by the first domain. Close it when the lookups are done, to
+ * let its threads go.
+ * @author Ken Fishkin
+ *
+ */
+public class CombinedDomain implements MediaDomain, AutoCloseable {
+  private final List<MediaDomain> members;
+  private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+
+  /**
+   * @param members the domains, the first of which reads and writes the list.
+   */
+  public CombinedDomain(List<? extends MediaDomain> members) {
+    this.members = new ArrayList<MediaDomain>(members);
+  }
+
+  public List<MediaDomain> getMembers() {
+    return members;
+  }
+
+  @Override
+  public String getName() {
+    StringBuilder name = new StringBuilder();
+    for (MediaDomain member : members) {
+      name.append((name.length() == 0) ? "" : " + ").append(member.getName());
+    }
+    return name.toString();
+  }
+
+  @Override
+  public Iterable<MediaItem> readFile(String fileName) {
+    return members.get(0).readFile(fileName);
+  }
+
+  @Override
+  public boolean updateFile(Iterable<MediaItem> newList, String fileName) {
+    return members.get(0).updateFile(newList, fileName);
+  }
+
+  @Override
+  public Stream<MediaItem> streamFile(String fileName) {
+    return members.get(0).streamFile(fileName);
+  }
+
+  @Override
+  public Update startUpdate(String fileName) {
+    return members.get(0).startUpdate(fileName);
+  }
+
+  @Override
+  public void willLookUp(List<MediaItem> items) {
+    for (MediaDomain member : members) {
+      member.willLookUp(items);
+    }
+  }
+
+  @Override
+  public void warmUp() {
+    for (MediaDomain member : members) {
+      member.warmUp();
+    }
+  }
+
+  /**
+   * @return each domain's candidates, in the order the domains were given.
+   */
+  @Override
+  public Candidates findWebCandidates(MediaItem item) {
+    List<Future<Candidates>> futures = new ArrayList<Future<Candidates>>();
+    for (MediaDomain member : members) {
+      futures.add(executor.submit(() -> member.findWebCandidates(item)));
+    }
+    Candidates[] parts = new Candidates[members.size()];
+    for (int i = 0; i < parts.length; i++) {
+      try {
+        parts[i] = futures.get(i).get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        for (Future<Candidates> future : futures) {
+          future.cancel(true);
+        }
+        return Candidates.ofParts(parts);
+      } catch (ExecutionException e) {
+        Log.error("lookup of %s in %s failed: %s\n", item, members.get(i).getName(), e.getCause());
+      }
+    }
+    return Candidates.ofParts(parts);
+  }
+
+  @Override
+  public BestMatch findBestMatch(MediaItem desired, Candidates candidates) {
+    if (desired == null || candidates == null || candidates.asParts() == null) {
+      return null;
+    }
+    Candidates[] parts = candidates.asParts();
+    BestMatch best = null;
+    for (int i = 0; i < parts.length; i++) {
+      if (parts[i] == null) {
+        continue;
+      }
+      BestMatch match = members.get(i).findBestMatch(desired, parts[i]);
+      if (isBetter(match, best)) {
+        best = match;
+      }
+    }
+    return best;
+  }
+
+  @Override
+  public void close() {
+    executor.shutdownNow();
+  }
+
+  // a match close enough to be taken beats one that isn't; between two that are, the better format wins;
+  // otherwise, the closer one.
+  static boolean isBetter(BestMatch match, BestMatch than) {
+    if (match == null) {
+      return false;
+    }
+    if (than == null) {
+      return true;
+    }
+    boolean close = isClose(match);
+    if (close != isClose(than)) {
+      return close;
+    }
+    if (close && match.bestFormat.value != than.bestFormat.value) {
+      return match.bestFormat.value > than.bestFormat.value;
+    }
+    return (match.titleDistance + match.authorDistance) < (than.titleDistance + than.authorDistance);
+  }
+
+  private static boolean isClose(BestMatch match) {
+    return match.titleDistance <= Spl.MIN_DISTANCE && match.authorDistance <= Spl.MIN_DISTANCE;
+  }
+}
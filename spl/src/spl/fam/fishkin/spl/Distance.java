@@ -1,6 +1,76 @@
 package fam.fishkin.spl;
 
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
 public class Distance {
+  // the SIMD kernel needs the incubating Vector API, which is only there if the JVM was started with it.
+  private static final boolean VECTOR = vectorAvailable();
+  // below this many candidates, filling the vector lanes costs more than it saves.
+  private static final int VECTOR_MIN_BATCH = 16;
+  // how much work the filters in front of Query.distanceAtMost save.
+  private static final LongAdder compared = new LongAdder();
+  private static final LongAdder ruledOutByLength = new LongAdder();
+  private static final LongAdder ruledOutByPairs = new LongAdder();
+  private static final LongAdder computed = new LongAdder();
+
+  private static boolean vectorAvailable() {
+    if (ModuleLayer.boot().findModule("jdk.incubator.vector").isEmpty()) {
+      return false;
+    }
+    try {
+      return VectorDistance.lanes() > 1;
+    } catch (LinkageError e) {
+      return false;
+    }
+  }
+
+  /**
+   * @return true if {@link Query#distances} scores candidates with SIMD instructions,
+   * false if it's using the scalar code.
+   */
+  public static boolean isVectorized() {
+    return VECTOR;
+  }
+
+  /**
+   * @return how many candidates were given to {@link Query#distanceAtMost}
+   */
+  public static long getCompared() {
+    return compared.sum();
+  }
+
+  /**
+   * @return how many of those were too different in length to be within the limit
+   */
+  public static long getRuledOutByLength() {
+    return ruledOutByLength.sum();
+  }
+
+  /**
+   * @return how many of those shared too few letter pairs with the pattern to be within the limit
+   */
+  public static long getRuledOutByPairs() {
+    return ruledOutByPairs.sum();
+  }
+
+  /**
+   * @return how many of those got past the filters, and had their distance computed
+   */
+  public static long getComputed() {
+    return computed.sum();
+  }
+
+  /**
+   * @return a summary of the filter counts
+   */
+  public static String filterStats() {
+    return String.format("%d compared: %d ruled out by length, %d by letter pairs, %d computed",
+        getCompared(), getRuledOutByLength(), getRuledOutByPairs(), getComputed());
+  }
+
   // compute Levenshtein distance.
   // from https://en.wikibooks.org/wiki/Algorithm_Implementation/Strings/Levenshtein_distance#Java
   public static int LevenshteinDistance(CharSequence lhs, CharSequence rhs) {
@@ -50,5 +120,290 @@ public class Distance {
     // the distance is the cost for transforming all letters in both strings
     return cost[len0 - 1];
   }
-}
 
+  /**
+   * Get ready to compare one string against many, e.g. a desired title against every candidate.
+   * @param pattern the string everything will be compared to
+   * @return a query for it. Not thread-safe: use one per thread.
+   */
+  public static Query query(CharSequence pattern) {
+    return new Query(pattern);
+  }
+
+  /**
+   * Levenshtein distance, ignoring case, from one fixed string to many others, using Myers'
+   * bit-parallel algorithm (in Hyyrö's form, for whole-string distance): the pattern's
+   * match masks are worked out once, then each column of the matrix takes a few
+   * word operations per 64 pattern characters, instead of one step per cell.
+   */
+  public static class Query {
+    private static final int ASCII = 128;
+    private static final char PAD = '\u0000';
+    private final int length;
+    private final int words;
+    // the high bit of the last word: the bottom row of the matrix.
+    private final long lastBit;
+    // match masks: for each character, which pattern positions it's at.
+    private final long[] asciiMasks;
+    private final Map<Character, long[]> otherMasks = new HashMap<Character, long[]>();
+    private final long[] noMatch;
+    // the vertical deltas of the current column, +1 and -1.
+    private final long[] plus;
+    private final long[] minus;
+    // the pattern's letter pairs (padded at each end), in a little open-addressed table:
+    // how many times each pair occurs, and how many a text has used up so far.
+    private final int[] pairKeys;
+    private final int[] pairCounts;
+    private final int[] pairsUsed;
+    private final int[] pairsUsedBy;
+    private int textNumber = 0;
+
+    private Query(CharSequence pattern) {
+      length = (pattern == null) ? 0 : pattern.length();
+      words = Math.max(1, (length + 63) / 64);
+      lastBit = 1L << ((length + 63) % 64);
+      asciiMasks = new long[ASCII * words];
+      noMatch = new long[words];
+      plus = new long[words];
+      minus = new long[words];
+      for (int i = 0; i < length; i++) {
+        char c = Character.toLowerCase(pattern.charAt(i));
+        long bit = 1L << (i % 64);
+        if (c < ASCII) {
+          asciiMasks[c * words + i / 64] |= bit;
+        } else {
+          otherMasks.computeIfAbsent(c, key -> new long[words])[i / 64] |= bit;
+        }
+      }
+      int slots = Integer.highestOneBit(Math.max(8, 2 * (length + 1)) - 1) << 1;
+      pairKeys = new int[slots];
+      pairCounts = new int[slots];
+      pairsUsed = new int[slots];
+      pairsUsedBy = new int[slots];
+      char prev = PAD;
+      for (int i = 0; i <= length; i++) {
+        char c = (i < length) ? Character.toLowerCase(pattern.charAt(i)) : PAD;
+        int slot = pairSlot((prev << 16) | c);
+        pairKeys[slot] = (prev << 16) | c;
+        pairCounts[slot]++;
+        prev = c;
+      }
+    }
+
+    // where a letter pair is, or would go, in the table.
+    private int pairSlot(int pair) {
+      int mask = pairKeys.length - 1;
+      int slot = (pair * 0x9e3779b9) >>> 16 & mask;
+      while (pairCounts[slot] != 0 && pairKeys[slot] != pair) {
+        slot = (slot + 1) & mask;
+      }
+      return slot;
+    }
+
+    // how many letter pairs a text shares with the pattern, counting repeats. Stops as soon as
+    // it's clear whether that's at least (enough).
+    private int sharedPairs(CharSequence text, int n, int enough) {
+      int stamp = ++textNumber;
+      int shared = 0;
+      char prev = PAD;
+      for (int j = 0; j <= n; j++) {
+        char c = (j < n) ? Character.toLowerCase(text.charAt(j)) : PAD;
+        int slot = pairSlot((prev << 16) | c);
+        prev = c;
+        if (pairCounts[slot] == 0) {
+          // even if every pair left matched, would it be enough?
+          if (shared + (n - j) < enough) {
+            break;
+          }
+          continue;
+        }
+        if (pairsUsedBy[slot] != stamp) {
+          pairsUsedBy[slot] = stamp;
+          pairsUsed[slot] = 0;
+        }
+        if (pairsUsed[slot] < pairCounts[slot]) {
+          pairsUsed[slot]++;
+          if (++shared >= enough) {
+            break;
+          }
+        }
+      }
+      return shared;
+    }
+
+    /**
+     * @return the length of the pattern
+     */
+    public int length() {
+      return length;
+    }
+
+    /**
+     * Score a batch of candidates. With the Vector API available, and a pattern of at most 64
+     * characters, several candidates are scored at once, one per SIMD lane.
+     * @param texts the candidates
+     * @return the distance of each from the pattern, same order
+     */
+    public int[] distances(CharSequence[] texts) {
+      int[] result = new int[texts.length];
+      if (VECTOR && length > 0 && words == 1 && texts.length >= VECTOR_MIN_BATCH) {
+        vectorDistances(texts, result);
+      } else {
+        for (int i = 0; i < texts.length; i++) {
+          result[i] = distance(texts[i]);
+        }
+      }
+      return result;
+    }
+
+    /**
+     * @param texts the candidates
+     * @return the index of the first candidate closest to the pattern, -1 if there are none.
+     */
+    public int closest(CharSequence[] texts) {
+      int best = -1;
+      int bestDistance = Integer.MAX_VALUE;
+      if (VECTOR && length > 0 && words == 1 && texts.length >= VECTOR_MIN_BATCH) {
+        int[] all = distances(texts);
+        for (int i = 0; i < all.length; i++) {
+          if (all[i] < bestDistance) {
+            best = i;
+            bestDistance = all[i];
+          }
+        }
+        return best;
+      }
+      for (int i = 0; i < texts.length; i++) {
+        int d = distanceAtMost(texts[i], bestDistance - 1);
+        if (d < bestDistance) {
+          best = i;
+          bestDistance = d;
+        }
+      }
+      return best;
+    }
+
+    private void vectorDistances(CharSequence[] texts, int[] result) {
+      // one flat mask table: ASCII first, then the pattern's other characters, then "no match".
+      Map<Character, Integer> codeOf = new HashMap<Character, Integer>();
+      long[] masks = new long[ASCII + otherMasks.size() + 1];
+      System.arraycopy(asciiMasks, 0, masks, 0, ASCII);
+      for (Map.Entry<Character, long[]> entry : otherMasks.entrySet()) {
+        codeOf.put(entry.getKey(), ASCII + codeOf.size());
+        masks[ASCII + codeOf.size() - 1] = entry.getValue()[0];
+      }
+      int none = masks.length - 1;
+      int[][] codes = new int[texts.length][];
+      Integer[] byLength = new Integer[texts.length];
+      for (int i = 0; i < texts.length; i++) {
+        CharSequence text = texts[i];
+        int n = (text == null) ? 0 : text.length();
+        codes[i] = new int[n];
+        for (int j = 0; j < n; j++) {
+          char c = Character.toLowerCase(text.charAt(j));
+          codes[i][j] = (c < ASCII) ? c : codeOf.getOrDefault(c, none);
+        }
+        byLength[i] = i;
+      }
+      // lanes finish together when their candidates are about the same length.
+      Arrays.sort(byLength, (a, b) -> Integer.compare(codes[a].length, codes[b].length));
+      int[] order = new int[texts.length];
+      for (int i = 0; i < order.length; i++) {
+        order[i] = byLength[i];
+      }
+      VectorDistance.distances(masks, none, length, codes, order, result);
+    }
+
+    /**
+     * @param text a string
+     * @return its distance from the pattern
+     */
+    public int distance(CharSequence text) {
+      int n = (text == null) ? 0 : text.length();
+      return compute(text, n, Math.max(length, n));
+    }
+
+    /**
+     * Filter, then verify: cheap lower bounds on the distance rule out most poor
+     * candidates before the real distance is computed.
+     * First the difference in length, then the letter pairs: strings within k edits of
+     * each other share at least max(length) + 1 - 2k of their letter pairs, padded at each end.
+     * @param text a string
+     * @param k the largest distance of interest. Negative is treated as 0.
+     * @return its distance from the pattern, if that's at most k, otherwise k + 1.
+     */
+    public int distanceAtMost(CharSequence text, int k) {
+      int n = (text == null) ? 0 : text.length();
+      k = Math.min(Math.max(k, 0), Math.max(length, n));
+      compared.increment();
+      if (Math.abs(length - n) > k) {
+        ruledOutByLength.increment();
+        return k + 1;
+      }
+      // counting pairs costs about as much per letter as one word of Myers, so it's only
+      // worth it for long patterns, or when so many pairs are needed that it can stop early.
+      int needed = Math.max(length, n) + 1 - 2 * k;
+      if (needed > 0 && (words > 1 || 2 * needed > n + 1) && sharedPairs(text, n, needed) < needed) {
+        ruledOutByPairs.increment();
+        return k + 1;
+      }
+      computed.increment();
+      return compute(text, n, k);
+    }
+
+    // Myers' algorithm, giving up once the distance must be over k.
+    private int compute(CharSequence text, int n, int k) {
+      if (length == 0) {
+        return n;
+      }
+      for (int w = 0; w < words; w++) {
+        plus[w] = -1L;
+        minus[w] = 0L;
+      }
+      int score = length;
+      for (int j = 0; j < n; j++) {
+        long[] masks = asciiMasks;
+        int base = 0;
+        char c = Character.toLowerCase(text.charAt(j));
+        if (c < ASCII) {
+          base = c * words;
+        } else {
+          long[] other = otherMasks.get(c);
+          masks = (other == null) ? noMatch : other;
+        }
+        // the top row of the matrix goes up by one each column.
+        int carry = 1;
+        for (int w = 0; w < words; w++) {
+          long eq = masks[base + w];
+          long pv = plus[w];
+          long mv = minus[w];
+          long xv = eq | mv;
+          if (carry < 0) {
+            eq |= 1L;
+          }
+          long xh = (((eq & pv) + pv) ^ pv) | eq;
+          long ph = mv | ~(xh | pv);
+          long mh = pv & xh;
+          long high = (w == words - 1) ? lastBit : (1L << 63);
+          int out = ((ph & high) != 0) ? 1 : (((mh & high) != 0) ? -1 : 0);
+          ph <<= 1;
+          mh <<= 1;
+          if (carry < 0) {
+            mh |= 1L;
+          } else if (carry > 0) {
+            ph |= 1L;
+          }
+          plus[w] = mh | ~(xv | ph);
+          minus[w] = ph & xv;
+          carry = out;
+        }
+        score += carry;
+        // each remaining column can bring the score down by at most one.
+        if (score - (n - j - 1) > k) {
+          return k + 1;
+        }
+      }
+      return (score <= k) ? score : k + 1;
+    }
+  }
+}
@@ -0,0 +1,240 @@
+package fam.fishkin.spl;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.text.ParseException;
+import java.util.List;
+
+import jdk.jfr.Category;
+import jdk.jfr.Configuration;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Recording;
+import jdk.jfr.StackTrace;
+
+/**
+ * Java Flight Recorder events for each step of a run, so a slow run can be taken apart in
+ * JDK Mission Control: which searches were slow, and whether the time went to the site
+ * (a Fetch), to parsing what came back (a Parse), or to matching (a Match).
+ * <p>
+ * The events are always in the code. When nothing is recording them, each one costs a
+ * check of a flag, and the event objects don't even get allocated, so they can stay in.
+ * Run with "-jfr run.jfr" to record them, or start the JVM with -XX:StartFlightRecording.
+ * Fields are only filled in if the event is going to be kept; use them as:
+ * <pre>
+ *   Events.Fetch event = new Events.Fetch();
+ *   event.begin();
+ *   ... do the work ...
+ *   if (event.shouldCommit()) {
+ *     event.url = url;
+ *     event.commit();
+ *   }
+ * </pre>
+ * @author Ken Fishkin
+ *
+ */
+public class Events {
+  private static final String CATEGORY = "SPL";
+  private static Recording recording = null;
+
+  private Events() {
+  }
+
+  /** One search of a library web site for an item (or batch of items): fetch and parse. */
+  @Name("fam.fishkin.spl.Search")
+  @Label("Search")
+  @Category({ CATEGORY, "Web" })
+  @Description("A search of the library web site, from sending it to having the candidates")
+  @StackTrace(false)
+  public static final class Search extends Event {
+    @Label("Kind")
+    @Description("html or rss")
+    public String kind;
+    @Label("Query")
+    @Description("The title searched for, or what a batch was")
+    public String query;
+    @Label("URL")
+    public String url;
+    @Label("Status Code")
+    public int statusCode;
+    @Label("Bytes Received")
+    @DataAmount
+    public long bytesReceived;
+    @Label("Candidates")
+    public int candidates;
+  }
+
+  /** One try at fetching a URL: the time on the network (connecting, TLS, the site itself). */
+  @Name("fam.fishkin.spl.Fetch")
+  @Label("Fetch")
+  @Category({ CATEGORY, "Web" })
+  @Description("One HTTP request, from sending it to having the whole body; a cached page has no Fetch")
+  @StackTrace(false)
+  public static final class Fetch extends Event {
+    @Label("URL")
+    public String url;
+    @Label("Attempt")
+    @Description("0 the first time, then 1, 2, ... when the site throttles us")
+    public int attempt;
+    @Label("Status Code")
+    public int statusCode;
+    @Label("Bytes Received")
+    @DataAmount
+    public long bytesReceived;
+    @Label("Revalidation")
+    @Description("True if a cached copy was being checked")
+    public boolean revalidation;
+  }
+
+  /** Parsing a page or feed into candidates. */
+  @Name("fam.fishkin.spl.Parse")
+  @Label("Parse")
+  @Category({ CATEGORY, "Web" })
+  @Description("Turning a search results page or feed into candidates")
+  @StackTrace(false)
+  public static final class Parse extends Event {
+    @Label("Kind")
+    @Description("html or rss")
+    public String kind;
+    @Label("URL")
+    public String url;
+    @Label("Bytes")
+    @DataAmount
+    public long bytes;
+    @Label("Candidates")
+    public int candidates;
+  }
+
+  /** Picking the best of the candidates for an item. */
+  @Name("fam.fishkin.spl.Match")
+  @Label("Match")
+  @Category({ CATEGORY, "Matching" })
+  @Description("findBestMatch on one item")
+  @StackTrace(false)
+  public static final class Match extends Event {
+    @Label("Domain")
+    public String domain;
+    @Label("Title")
+    public String title;
+    @Label("Candidates")
+    public int candidates;
+    @Label("Best Title")
+    public String bestTitle;
+    @Label("Title Distance")
+    @Description("-1 if there was no best match")
+    public int titleDistance;
+    @Label("Author Distance")
+    @Description("-1 if there was no best match")
+    public int authorDistance;
+  }
+
+  /** Reading (part of) a list. */
+  @Name("fam.fishkin.spl.ReadFile")
+  @Label("Read File")
+  @Category({ CATEGORY, "File" })
+  @Description("Reading a list, or one chunk of it when it's read a chunk at a time")
+  @StackTrace(false)
+  public static final class ReadFile extends Event {
+    @Label("File")
+    public String file;
+    @Label("Offset")
+    public long offset;
+    @Label("Bytes")
+    @DataAmount
+    public long bytes;
+    @Label("Items")
+    public int items;
+
+    /**
+     * Fill in the fields and commit, if the event is being recorded.
+     */
+    public void record(String file, long offset, long bytes, int items) {
+      if (shouldCommit()) {
+        this.file = file;
+        this.offset = offset;
+        this.bytes = bytes;
+        this.items = items;
+        commit();
+      }
+    }
+  }
+
+  /** Writing the updated list. */
+  @Name("fam.fishkin.spl.UpdateFile")
+  @Label("Update File")
+  @Category({ CATEGORY, "File" })
+  @Description("Writing the updated list back out")
+  @StackTrace(false)
+  public static final class UpdateFile extends Event {
+    @Label("File")
+    public String file;
+    @Label("Changes")
+    @Description("How many items changed, -1 if the whole list was written out")
+    public int changes;
+    @Label("Bytes Written")
+    @DataAmount
+    public long bytesWritten;
+
+    /**
+     * Fill in the fields and commit, if the event is being recorded.
+     */
+    public void record(String file, int changes, long bytesWritten) {
+      if (shouldCommit()) {
+        this.file = file;
+        this.changes = changes;
+        this.bytesWritten = bytesWritten;
+        commit();
+      }
+    }
+  }
+
+  /**
+   * Start recording, with the JDK's "default" settings plus these events, until {@link #stop()}.
+   * @param file where to write the recording
+   * @return true if it started
+   */
+  public static synchronized boolean record(Path file) {
+    if (recording != null) {
+      return true;
+    }
+    Recording started = null;
+    try {
+      started = new Recording(Configuration.getConfiguration("default"));
+      started.setName("spl");
+      for (Class<? extends Event> type : List.<Class<? extends Event>>of(Search.class, Fetch.class, Parse.class,
+          Match.class, ReadFile.class, UpdateFile.class)) {
+        started.enable(type).withoutStackTrace();
+      }
+      started.setDestination(file);
+      started.start();
+      recording = started;
+      return true;
+    } catch (IOException | ParseException | IllegalStateException | SecurityException e) {
+      Log.error("could not record to %s: %s\n", file, e);
+      if (started != null) {
+        started.close();
+      }
+      return false;
+    }
+  }
+
+  /**
+   * Stop recording, if we were, and write the recording out.
+   */
+  public static synchronized void stop() {
+    if (recording == null) {
+      return;
+    }
+    try {
+      recording.stop();
+      Log.info("Recording: %s\n", recording.getDestination());
+    } catch (IllegalStateException e) {
+      Log.error("could not write recording to %s: %s\n", recording.getDestination(), e);
+    }
+    recording.close();
+    recording = null;
+  }
+}
@@ -0,0 +1,66 @@
+package fam.fishkin.spl;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Several bibliocommons libraries at once, e.g. Seattle, King County and Sno-Isle,
+ * for someone with a card at each. Each item is searched for at every library at the
+ * same time, so a lookup takes about as long as the slowest library, not all of them
+ * added up; each library has its own pace, so a busy one doesn't hold the others back.
+ * The best match is the best of the libraries' best matches, and says which library it's at.
+ * <p>
+ * The list is read and written as for {@link SplDomain}.
+ * @author Ken Fishkin
+ *
+ */
+public class FederatedDomain extends SplDomain {
+  private final List<SplDomain> members;
+  // does the searching at all of them at once.
+  private final CombinedDomain combined;
+
+  /**
+   * @param members a domain for each library, e.g. an {@link SplDomain} or {@link SplRssDomain}.
+   */
+  public FederatedDomain(List<SplDomain> members) {
+    super(members.get(0).getLibrary());
+    this.members = new ArrayList<SplDomain>(members);
+    this.combined = new CombinedDomain(members);
+  }
+
+  @Override
+  public String getName() {
+    StringBuilder name = new StringBuilder("Libraries:");
+    for (SplDomain member : members) {
+      name.append(' ').append(member.getLibrary());
+    }
+    return name.toString();
+  }
+
+  @Override
+  public void willLookUp(List<MediaItem> items) {
+    combined.willLookUp(items);
+  }
+
+  /**
+   * @return each library's candidates, in the order the libraries were given.
+   */
+  @Override
+  public Candidates findWebCandidates(MediaItem item) {
+    if (!(item instanceof Book)) {
+      return null;
+    }
+    return combined.findWebCandidates(item);
+  }
+
+  @Override
+  public BestMatch findBestMatch(MediaItem desired, Candidates candidates) {
+    if (desired == null || candidates == null) {
+      return null;
+    }
+    if (candidates.asParts() == null) {
+      return super.findBestMatch(desired, candidates);
+    }
+    return combined.findBestMatch(desired, candidates);
+  }
+}
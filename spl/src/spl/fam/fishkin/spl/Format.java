@@ -1,8 +1,12 @@
 package fam.fishkin.spl;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * The possible formats a book can be available in.
@@ -43,7 +47,38 @@ public enum Format implements Comparable<Format> {
     return Format.UNKNOWN;
   }
 
+  // the file spellings, lower case, in the order fromFile tries them.
+  private static final List<String> filePrefixes = new ArrayList<String>();
+  private static final List<Format> filePrefixFormats = new ArrayList<Format>();
+  // a books file uses only a handful of distinct statuses, so remember what each decodes to.
+  private static final int MAX_KNOWN_STATUSES = 4096;
+  private static final Map<String, Format> knownStatuses = new ConcurrentHashMap<String, Format>();
+
+  static {
+    final Set<Format> values = EnumSet.of(UNKNOWN, OTHER, NO, PHYSICAL, EBEPUB, EBOOK, READ);
+    for (Format format : values) {
+      for (String option : format.fileFormats) {
+        if (!option.isEmpty()) {
+          filePrefixes.add(option.toLowerCase());
+          filePrefixFormats.add(format);
+        }
+      }
+    }
+  }
+
   public static Format fromFile(String inFile) {
+    Format known = knownStatuses.get(inFile);
+    if (known != null) {
+      return known;
+    }
+    Format format = decodeFile(inFile);
+    if (knownStatuses.size() < MAX_KNOWN_STATUSES) {
+      knownStatuses.put(inFile, format);
+    }
+    return format;
+  }
+
+  private static Format decodeFile(String inFile) {
     inFile = inFile.toLowerCase();
     // and may end with a number....
     int idx = inFile.length() - 1;
@@ -54,12 +89,9 @@ public enum Format implements Comparable<Format> {
       }
     }
     inFile = inFile.substring(0, idx + 1);
-    final Set<Format> values = EnumSet.of(UNKNOWN, OTHER, NO, PHYSICAL, EBEPUB, EBOOK, READ);
-    for (Format format : values) {
-      for (String option : format.fileFormats) {
-        if (!option.isEmpty() && inFile.startsWith(option.toLowerCase())) {
-          return format;
-        }
+    for (int i = 0; i < filePrefixes.size(); i++) {
+      if (inFile.startsWith(filePrefixes.get(i))) {
+        return filePrefixFormats.get(i);
       }
     }
     return Format.UNKNOWN;
@@ -0,0 +1,282 @@
+package fam.fishkin.spl;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.http.HttpHeaders;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * An on-disk cache of web responses, keyed by URL.
+ * Entries younger than the TTL are used as-is. Older ones are revalidated
+ * with the ETag / Last-Modified the site gave us, so an unchanged catalog entry
+ * costs a 304 instead of a whole search page.
+ * The cache is kept under a size cap by throwing out the least recently used entries.
+ * @author Ken Fishkin
+ *
+ */
+public class HttpDiskCache {
+  private static final int MAGIC = 0x53504c43; // "SPLC"
+  private static final String SUFFIX = ".cache";
+
+  /**
+   * One cached response.
+   */
+  public static class Entry {
+    public String url;
+    public String etag;
+    public String lastModified;
+    public long fetchedAtMillis;
+    public byte[] body;
+
+    /**
+     * @return the request headers to send to revalidate this entry.
+     */
+    public Map<String, String> conditionalHeaders() {
+      Map<String, String> headers = new LinkedHashMap<String, String>();
+      if (etag != null && !etag.isEmpty()) {
+        headers.put("If-None-Match", etag);
+      }
+      if (lastModified != null && !lastModified.isEmpty()) {
+        headers.put("If-Modified-Since", lastModified);
+      }
+      return headers;
+    }
+
+    public HttpTransport.Response toResponse() {
+      return new HttpTransport.Response(url, 200, HttpHeaders.of(Map.of(), (k, v) -> true), body);
+    }
+  }
+
+  private final File dir;
+  private final long ttlMillis;
+  private final long maxBytes;
+  // file name -> size, in least-recently-used order.
+  private final LinkedHashMap<String, Long> index = new LinkedHashMap<String, Long>(16, 0.75f, true);
+  private long totalBytes = 0;
+  private final AtomicLong freshHits = new AtomicLong();
+  private final AtomicLong revalidated = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+
+  /**
+   * @param dir the directory to keep the cache in. Created if need be.
+   * @param ttlMillis how long an entry is used without asking the site if it changed
+   * @param maxBytes how big the cache may get
+   * @throws IOException if the directory can't be created or read
+   */
+  public HttpDiskCache(File dir, long ttlMillis, long maxBytes) throws IOException {
+    this.dir = dir;
+    this.ttlMillis = ttlMillis;
+    this.maxBytes = maxBytes;
+    Files.createDirectories(dir.toPath());
+    loadIndex();
+  }
+
+  private void loadIndex() throws IOException {
+    List<Path> files;
+    try (Stream<Path> stream = Files.list(dir.toPath())) {
+      files = stream.filter(p -> p.getFileName().toString().endsWith(SUFFIX)).collect(Collectors.toList());
+    }
+    // oldest first, so the LRU order survives a restart.
+    files.sort((a, b) -> Long.compare(a.toFile().lastModified(), b.toFile().lastModified()));
+    synchronized (this) {
+      for (Path path : files) {
+        long size = path.toFile().length();
+        index.put(path.getFileName().toString(), size);
+        totalBytes += size;
+      }
+      evict();
+    }
+  }
+
+  /**
+   * Look up a URL.
+   * @param url the URL
+   * @return the cached entry, or null if there isn't one.
+   */
+  public Entry get(String url) {
+    String name = fileName(url);
+    synchronized (this) {
+      if (index.get(name) == null) {
+        misses.incrementAndGet();
+        return null;
+      }
+    }
+    File file = new File(dir, name);
+    Entry entry;
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file.toPath())))) {
+      entry = read(in);
+    } catch (IOException e) {
+      Log.error("could not read cache file %s: %s\n", file, e);
+      remove(name);
+      misses.incrementAndGet();
+      return null;
+    }
+    if (entry == null || !url.equals(entry.url)) {
+      remove(name);
+      misses.incrementAndGet();
+      return null;
+    }
+    touch(file);
+    return entry;
+  }
+
+  /**
+   * @param entry an entry
+   * @return true if the entry can be used without revalidating it.
+   */
+  public boolean isFresh(Entry entry) {
+    return System.currentTimeMillis() - entry.fetchedAtMillis < ttlMillis;
+  }
+
+  /**
+   * Put a 200 response in the cache.
+   * @param response the response
+   * @return the new entry
+   */
+  public Entry put(HttpTransport.Response response) {
+    Entry entry = new Entry();
+    entry.url = response.url;
+    entry.etag = response.headers.firstValue("ETag").orElse(null);
+    entry.lastModified = response.headers.firstValue("Last-Modified").orElse(null);
+    entry.fetchedAtMillis = System.currentTimeMillis();
+    entry.body = response.body;
+    write(entry);
+    return entry;
+  }
+
+  /**
+   * The site said a cached entry hasn't changed: mark it fresh again.
+   * @param entry the entry
+   */
+  public void refresh(Entry entry) {
+    entry.fetchedAtMillis = System.currentTimeMillis();
+    write(entry);
+  }
+
+  public void countFreshHit() {
+    freshHits.incrementAndGet();
+  }
+
+  public void countRevalidated() {
+    revalidated.incrementAndGet();
+  }
+
+  public long getFreshHits() {
+    return freshHits.get();
+  }
+
+  public long getRevalidated() {
+    return revalidated.get();
+  }
+
+  public long getMisses() {
+    return misses.get();
+  }
+
+  private void write(Entry entry) {
+    String name = fileName(entry.url);
+    Path dest = new File(dir, name).toPath();
+    Path temp;
+    try {
+      // write to a temp file in the same directory, then move it into place,
+      // so a crash never leaves a half-written entry behind.
+      temp = Files.createTempFile(dir.toPath(), "entry", ".tmp");
+      try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+        write(entry, out);
+      }
+      Files.move(temp, dest, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException e) {
+      Log.error("could not write cache entry for %s: %s\n", entry.url, e);
+      return;
+    }
+    long size = dest.toFile().length();
+    synchronized (this) {
+      Long old = index.put(name, size);
+      totalBytes += size - (old == null ? 0 : old);
+      evict();
+    }
+  }
+
+  // caller holds the lock.
+  private void evict() {
+    Iterator<Map.Entry<String, Long>> iter = index.entrySet().iterator();
+    while (totalBytes > maxBytes && iter.hasNext()) {
+      Map.Entry<String, Long> victim = iter.next();
+      iter.remove();
+      totalBytes -= victim.getValue();
+      new File(dir, victim.getKey()).delete();
+    }
+  }
+
+  private synchronized void remove(String name) {
+    Long size = index.remove(name);
+    if (size != null) {
+      totalBytes -= size;
+    }
+    new File(dir, name).delete();
+  }
+
+  private void touch(File file) {
+    try {
+      Files.setLastModifiedTime(file.toPath(), FileTime.fromMillis(System.currentTimeMillis()));
+    } catch (IOException e) {
+      // only affects the LRU order after a restart.
+    }
+  }
+
+  private static void write(Entry entry, DataOutputStream out) throws IOException {
+    out.writeInt(MAGIC);
+    out.writeUTF(entry.url);
+    out.writeUTF(entry.etag == null ? "" : entry.etag);
+    out.writeUTF(entry.lastModified == null ? "" : entry.lastModified);
+    out.writeLong(entry.fetchedAtMillis);
+    out.writeInt(entry.body.length);
+    out.write(entry.body);
+  }
+
+  private static Entry read(DataInputStream in) throws IOException {
+    if (in.readInt() != MAGIC) {
+      return null;
+    }
+    Entry entry = new Entry();
+    entry.url = in.readUTF();
+    entry.etag = in.readUTF();
+    entry.lastModified = in.readUTF();
+    entry.fetchedAtMillis = in.readLong();
+    entry.body = new byte[in.readInt()];
+    in.readFully(entry.body);
+    return entry;
+  }
+
+  private static String fileName(String url) {
+    try {
+      MessageDigest digest = MessageDigest.getInstance("SHA-256");
+      byte[] hash = digest.digest(url.getBytes(StandardCharsets.UTF_8));
+      StringBuilder buf = new StringBuilder();
+      for (byte b : hash) {
+        buf.append(String.format("%02x", b));
+      }
+      return buf.append(SUFFIX).toString();
+    } catch (NoSuchAlgorithmException e) {
+      // every JVM has SHA-256.
+      throw new IllegalStateException(e);
+    }
+  }
+}
@@ -0,0 +1,208 @@
+package fam.fishkin.spl;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpHeaders;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * The one HTTP client the program uses to talk to web sites.
+ * It's shared, so connections are kept alive and reused between lookups
+ * (and multiplexed, if the site speaks HTTP/2), and it asks for gzipped responses.
+ * @author Ken Fishkin
+ *
+ */
+public class HttpTransport {
+  public static final String USER_AGENT =
+      "Mozilla/5.0 (Windows NT 10.0; Win64; x64) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/80.0.3987.122 Safari/537.36";
+  public static final int DEFAULT_CONNECT_TIMEOUT_SECONDS = 10;
+  public static final int DEFAULT_READ_TIMEOUT_SECONDS = 30;
+  // how long the JDK client keeps an idle connection around before closing it.
+  private static final long KEEP_ALIVE_NANOS = TimeUnit.SECONDS.toNanos(
+      Long.getLong("jdk.httpclient.keepalive.timeout", 1200));
+
+  /**
+   * A response, with the body already read (and un-gzipped).
+   */
+  public static class Response {
+    public String url;
+    public int statusCode;
+    public HttpHeaders headers;
+    public byte[] body;
+
+    public Response(String url, int statusCode, HttpHeaders headers, byte[] body) {
+      this.url = url;
+      this.statusCode = statusCode;
+      this.headers = headers;
+      this.body = body;
+    }
+
+    public InputStream bodyStream() {
+      return new ByteArrayInputStream(body == null ? new byte[0] : body);
+    }
+  }
+
+  // the client doesn't tell us about its connection pool, so keep an
+  // estimate per host: a connection is reused if an idle one should still be alive.
+  private static class HostConnections {
+    boolean http2;
+    int open;
+    int idle;
+    long lastUsedNanos;
+  }
+
+  private static volatile Duration connectTimeout = Duration.ofSeconds(DEFAULT_CONNECT_TIMEOUT_SECONDS);
+  private static volatile Duration readTimeout = Duration.ofSeconds(DEFAULT_READ_TIMEOUT_SECONDS);
+  private static volatile HttpClient client = null;
+  private static final Map<String, HostConnections> connections = new HashMap<String, HostConnections>();
+  private static final AtomicLong estimatedOpened = new AtomicLong();
+  private static final AtomicLong estimatedReused = new AtomicLong();
+
+  /**
+   * Sets the timeouts. Call before the first request.
+   * @param connectSeconds how long to wait for a connection
+   * @param readSeconds how long to wait for a response
+   */
+  public static synchronized void configure(int connectSeconds, int readSeconds) {
+    connectTimeout = Duration.ofSeconds(connectSeconds);
+    readTimeout = Duration.ofSeconds(readSeconds);
+    client = null;
+  }
+
+  private static HttpClient client() {
+    HttpClient answer = client;
+    if (answer == null) {
+      synchronized (HttpTransport.class) {
+        if (client == null) {
+          client = HttpClient.newBuilder()
+              .version(HttpClient.Version.HTTP_2)
+              .followRedirects(HttpClient.Redirect.NORMAL)
+              .connectTimeout(connectTimeout)
+              .build();
+        }
+        answer = client;
+      }
+    }
+    return answer;
+  }
+
+  /**
+   * GET a URL.
+   * @param url the URL
+   * @return the response, whatever its status code.
+   * @throws IOException if the request couldn't be made at all
+   */
+  public static Response get(String url) throws IOException {
+    return get(url, null);
+  }
+
+  /**
+   * GET a URL.
+   * @param url the URL
+   * @param extraHeaders more request headers to send, may be null
+   * @return the response, whatever its status code.
+   * @throws IOException if the request couldn't be made at all
+   */
+  public static Response get(String url, Map<String, String> extraHeaders) throws IOException {
+    URI uri;
+    try {
+      uri = URI.create(url);
+    } catch (IllegalArgumentException e) {
+      throw new IOException("bad URL " + url, e);
+    }
+    HttpRequest.Builder builder = HttpRequest.newBuilder(uri)
+        .GET()
+        .timeout(readTimeout)
+        .header("User-Agent", USER_AGENT)
+        .header("Accept-Encoding", "gzip");
+    if (extraHeaders != null) {
+      for (Map.Entry<String, String> entry : extraHeaders.entrySet()) {
+        builder.header(entry.getKey(), entry.getValue());
+      }
+    }
+    String host = uri.getHost();
+    connectionStarting(host);
+    HttpResponse<InputStream> response = null;
+    try {
+      response = client().send(builder.build(), HttpResponse.BodyHandlers.ofInputStream());
+      byte[] body;
+      try (InputStream in = decode(response)) {
+        body = in.readAllBytes();
+      }
+      return new Response(url, response.statusCode(), response.headers(), body);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("interrupted fetching " + url, e);
+    } finally {
+      connectionFinished(host, response == null ? null : response.version());
+    }
+  }
+
+  private static InputStream decode(HttpResponse<InputStream> response) throws IOException {
+    String encoding = response.headers().firstValue("Content-Encoding").orElse("");
+    if (encoding.equalsIgnoreCase("gzip")) {
+      return new GZIPInputStream(response.body());
+    }
+    return response.body();
+  }
+
+  private static void connectionStarting(String host) {
+    synchronized (connections) {
+      HostConnections conns = connections.computeIfAbsent(host, h -> new HostConnections());
+      if (System.nanoTime() - conns.lastUsedNanos > KEEP_ALIVE_NANOS) {
+        conns.open = 0;
+        conns.idle = 0;
+      }
+      if (conns.http2 && conns.open > 0) {
+        estimatedReused.incrementAndGet();
+      } else if (conns.idle > 0) {
+        conns.idle--;
+        estimatedReused.incrementAndGet();
+      } else {
+        conns.open++;
+        estimatedOpened.incrementAndGet();
+      }
+    }
+  }
+
+  private static void connectionFinished(String host, HttpClient.Version version) {
+    synchronized (connections) {
+      HostConnections conns = connections.get(host);
+      if (version == null) {
+        // the request failed, assume the connection went with it.
+        conns.open = Math.max(0, conns.open - 1);
+        return;
+      }
+      conns.lastUsedNanos = System.nanoTime();
+      conns.http2 = (version == HttpClient.Version.HTTP_2);
+      if (!conns.http2) {
+        conns.idle++;
+      }
+    }
+  }
+
+  /**
+   * @return about how many connections have been opened so far. The client doesn't report its
+   * pool, so this is worked out from when each host was last used and the keep-alive timeout.
+   */
+  public static long getEstimatedConnectionsOpened() {
+    return estimatedOpened.get();
+  }
+
+  /**
+   * @return about how many requests went over an already-open connection, worked out the same way.
+   */
+  public static long getEstimatedConnectionsReused() {
+    return estimatedReused.get();
+  }
+}
@@ -0,0 +1,268 @@
+package fam.fishkin.spl;
+
+import java.io.PrintStream;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Where the run's output goes, instead of straight to System.out and System.err.
+ * Each line is formatted by the thread that has something to say, then put on a lock-free
+ * queue; one background thread takes the lines off and writes them in batches, so lookups
+ * running in parallel never wait on the console, or on a file the output is redirected to.
+ * Lines come out in the order they were queued, stdout and stderr alike.
+ * <p>
+ * How much is said is set by a {@link Level}. It can also print a progress line every so
+ * often - how far through the list the run is, how fast it's going, and how long it has to go -
+ * so a long run can be followed without a line for every item.
+ * @author Ken Fishkin
+ *
+ */
+public class Log {
+  /** How much to say. Each level says everything the ones before it do. */
+  public enum Level {
+    /** only errors */
+    QUIET,
+    /** errors, upgrades, progress and the summary at the end */
+    NORMAL,
+    /** and a line or two for every item */
+    VERBOSE,
+    /** and everything else */
+    DEBUG,
+  }
+
+  // how many lines may be waiting to be written before those adding more wait for them.
+  private static final int MAX_PENDING = 1 << 16;
+  // write a batch out once it gets this big, even if more lines are waiting.
+  private static final int MAX_BATCH_CHARS = 1 << 16;
+  // how long the writer sleeps when there's nothing to write, unless woken.
+  private static final long IDLE_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+  private static class Line {
+    final boolean error;
+    final String text;
+
+    Line(boolean error, String text) {
+      this.error = error;
+      this.text = text;
+    }
+  }
+
+  private static volatile Level level = Level.NORMAL;
+  private static final ConcurrentLinkedQueue<Line> queue = new ConcurrentLinkedQueue<Line>();
+  private static final AtomicLong queued = new AtomicLong();
+  // how many lines have been written. Only the writer changes it.
+  private static volatile long written = 0;
+  private static volatile boolean writerIdle = false;
+  private static final Thread writer;
+
+  // the progress line: every (progressNanos), if it's > 0.
+  private static volatile long progressNanos = 0;
+  private static volatile long progressStart;
+  private static volatile long progressRead;
+  private static volatile long progressChecked;
+  private static volatile long progressUpgrades;
+  private static volatile double progressFraction = -1;
+  private static long lastProgress;
+  private static long lastChecked;
+
+  static {
+    writer = new Thread(Log::run, "spl-log");
+    writer.setDaemon(true);
+    writer.start();
+    // whatever is still queued when the program ends still gets written.
+    Runtime.getRuntime().addShutdownHook(new Thread(Log::flush, "spl-log-flush"));
+  }
+
+  private Log() {
+  }
+
+  /**
+   * @param newLevel how much to say from now on
+   */
+  public static void setLevel(Level newLevel) {
+    level = newLevel;
+  }
+
+  /**
+   * @param at a level
+   * @return true if lines at that level are being written, so it's worth working them out.
+   */
+  public static boolean isEnabled(Level at) {
+    return level.compareTo(at) >= 0;
+  }
+
+  /**
+   * Something went wrong: always written, to stderr.
+   * @param format as for printf
+   * @param args as for printf
+   */
+  public static void error(String format, Object... args) {
+    add(true, String.format(format, args));
+  }
+
+  /**
+   * Something the user wants to know: written unless QUIET.
+   * @param format as for printf
+   * @param args as for printf
+   */
+  public static void info(String format, Object... args) {
+    if (isEnabled(Level.NORMAL)) {
+      add(false, String.format(format, args));
+    }
+  }
+
+  /**
+   * Per-item detail: written if VERBOSE or more.
+   * @param format as for printf
+   * @param args as for printf
+   */
+  public static void verbose(String format, Object... args) {
+    if (isEnabled(Level.VERBOSE)) {
+      add(false, String.format(format, args));
+    }
+  }
+
+  /**
+   * Written only if DEBUG.
+   * @param format as for printf
+   * @param args as for printf
+   */
+  public static void debug(String format, Object... args) {
+    if (isEnabled(Level.DEBUG)) {
+      add(false, String.format(format, args));
+    }
+  }
+
+  private static void add(boolean error, String text) {
+    if (text.isEmpty()) {
+      return;
+    }
+    queue.add(new Line(error, text));
+    long n = queued.incrementAndGet();
+    if (writerIdle) {
+      LockSupport.unpark(writer);
+    }
+    if (n - written > MAX_PENDING) {
+      // the writer can't keep up: let it catch up some, rather than queue without end.
+      waitFor(n - MAX_PENDING / 2);
+    }
+  }
+
+  /**
+   * Wait until everything queued so far has been written.
+   */
+  public static void flush() {
+    waitFor(queued.get());
+  }
+
+  private static void waitFor(long target) {
+    if (Thread.currentThread() == writer) {
+      return;
+    }
+    while (written < target && writer.isAlive()) {
+      LockSupport.unpark(writer);
+      LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+    }
+  }
+
+  /**
+   * Print a progress line every so often, from now on.
+   * @param seconds how often. 0 to stop.
+   */
+  public static void startProgress(int seconds) {
+    long now = System.nanoTime();
+    progressStart = now;
+    synchronized (Log.class) {
+      lastProgress = now;
+      lastChecked = 0;
+    }
+    progressNanos = TimeUnit.SECONDS.toNanos(Math.max(0, seconds));
+    LockSupport.unpark(writer);
+  }
+
+  /**
+   * Say how far the run has got. Cheap enough to call for every item: it's only looked at
+   * when the progress line is due.
+   * @param read how many items have been read
+   * @param checked how many have been looked up
+   * @param upgrades how many have been upgraded
+   * @param fraction how far through the list that is, from 0 to 1. Negative if not known.
+   */
+  public static void progress(long read, long checked, long upgrades, double fraction) {
+    progressRead = read;
+    progressChecked = checked;
+    progressUpgrades = upgrades;
+    progressFraction = fraction;
+  }
+
+  // the progress line, if it's due.
+  private static synchronized String progressLine(long now) {
+    long every = progressNanos;
+    if (every <= 0 || now - lastProgress < every || !isEnabled(Level.NORMAL)) {
+      return null;
+    }
+    long checked = progressChecked;
+    double seconds = (now - lastProgress) / 1e9;
+    double rate = (checked - lastChecked) / seconds;
+    lastProgress = now;
+    lastChecked = checked;
+    StringBuilder line = new StringBuilder();
+    line.append(String.format("progress: %d read, %d checked (%.1f/s), %d upgrades", progressRead, checked, rate,
+        progressUpgrades));
+    double fraction = progressFraction;
+    if (fraction > 0 && fraction <= 1) {
+      long elapsed = now - progressStart;
+      long left = (long) (elapsed * (1 - fraction) / fraction);
+      long leftSeconds = TimeUnit.NANOSECONDS.toSeconds(left);
+      line.append(String.format(", %.0f%% done, about %d:%02d:%02d to go", 100 * fraction, leftSeconds / 3600,
+          (leftSeconds / 60) % 60, leftSeconds % 60));
+    }
+    return line.append('\n').toString();
+  }
+
+  // the writer: takes lines off the queue and writes them, a batch at a time.
+  private static void run() {
+    StringBuilder batch = new StringBuilder();
+    boolean batchError = false;
+    long taken = 0;
+    for (;;) {
+      Line line = queue.poll();
+      if (line != null && (line.error == batchError || batch.length() == 0) && batch.length() < MAX_BATCH_CHARS) {
+        batch.append(line.text);
+        batchError = line.error;
+        taken++;
+        continue;
+      }
+      if (batch.length() > 0) {
+        write(batchError, batch);
+        batch.setLength(0);
+        written = taken;
+      }
+      // between batches, however busy it is.
+      String progress = progressLine(System.nanoTime());
+      if (progress != null) {
+        write(false, progress);
+      }
+      if (line != null) {
+        batch.append(line.text);
+        batchError = line.error;
+        taken++;
+        continue;
+      }
+      writerIdle = true;
+      if (queue.isEmpty()) {
+        long every = progressNanos;
+        LockSupport.parkNanos((every > 0) ? Math.min(every, IDLE_NANOS) : IDLE_NANOS);
+      }
+      writerIdle = false;
+    }
+  }
+
+  private static void write(boolean error, CharSequence text) {
+    PrintStream out = error ? System.err : System.out;
+    out.append(text);
+    out.flush();
+  }
+}
@@ -0,0 +1,190 @@
+package fam.fishkin.spl;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Runs the web lookup for media items: find the candidates, then the best match
+ * among them. With a parallelism of 1 each lookup happens when it's asked for,
+ * just like the original serial loop. With more, lookups are started ahead of time
+ * on virtual threads, and the per-host {@link TokenBucket} does the pacing. The matching,
+ * which only needs a core, is handed to a few platform threads, where its CPU time and
+ * allocations can be measured (a virtual thread can't tell us either).
+ * Results are always handed back in the order they're asked for, so the caller's
+ * reporting and bookkeeping don't have to change.
+ * @author Ken Fishkin
+ *
+ */
+public class LookupPipeline implements AutoCloseable {
+  /**
+   * The outcome of looking up one item.
+   */
+  public static class Result {
+    public boolean noCandidates;
+    public BestMatch best;
+
+    public Result(boolean noCandidates, BestMatch best) {
+      this.noCandidates = noCandidates;
+      this.best = best;
+    }
+  }
+
+  private final MediaDomain domain;
+  private final int parallelism;
+  private final ExecutorService executor;
+  // where the virtual threads' matches run, at most one per core.
+  private final ExecutorService matcher;
+  private final Semaphore inFlight;
+  private final Map<MediaItem, Future<Result>> pending = new IdentityHashMap<MediaItem, Future<Result>>();
+  private RunJournal journal = null;
+
+  /**
+   * @param domain the domain to do the lookups in
+   * @param parallelism the most lookups to have in flight at once. 1 means serial.
+   */
+  public LookupPipeline(MediaDomain domain, int parallelism) {
+    this.domain = domain;
+    this.parallelism = Math.max(1, parallelism);
+    if (this.parallelism > 1) {
+      executor = Executors.newVirtualThreadPerTaskExecutor();
+      inFlight = new Semaphore(this.parallelism);
+      int matchers = Math.min(this.parallelism, Runtime.getRuntime().availableProcessors());
+      matcher = Executors.newFixedThreadPool(matchers, Thread.ofPlatform().name("spl-match-", 0).daemon().factory());
+    } else {
+      executor = null;
+      inFlight = null;
+      matcher = null;
+    }
+  }
+
+  /**
+   * Record every result in a journal, and take the results it already has instead of looking them up again.
+   * @param journal the journal, null for none.
+   */
+  public void setJournal(RunJournal journal) {
+    this.journal = journal;
+  }
+
+  public boolean isConcurrent() {
+    return executor != null;
+  }
+
+  /**
+   * Start looking up every item that will need checking, skipping the first (skip) ones.
+   * Does nothing in serial mode.
+   * @param items the items, in the order they will be asked for
+   * @param skip how many items at the front of the list will not be asked for
+   */
+  public void prefetch(Iterable<MediaItem> items, int skip) {
+    if (!isConcurrent()) {
+      return;
+    }
+    for (MediaItem item : items) {
+      if (skip > 0) {
+        skip--;
+        continue;
+      }
+      if (item.isRead() || (journal != null && journal.replayed(item) != null)) {
+        continue;
+      }
+      pending.put(item, executor.submit(() -> {
+        inFlight.acquire();
+        try {
+          return lookup(item);
+        } finally {
+          inFlight.release();
+        }
+      }));
+    }
+  }
+
+  /**
+   * Get the lookup result for an item, waiting for it if it was prefetched,
+   * or doing it right now if it wasn't.
+   * @param item the item
+   * @return the result
+   */
+  public Result get(MediaItem item) {
+    Result result = (journal == null) ? null : journal.replayed(item);
+    if (result != null) {
+      return result;
+    }
+    Future<Result> future = pending.remove(item);
+    if (future == null) {
+      result = lookup(item);
+    } else {
+      try {
+        result = future.get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return new Result(true, null);
+      } catch (ExecutionException e) {
+        Log.error("lookup of %s failed: %s\n", item, e.getCause());
+        return new Result(true, null);
+      }
+    }
+    if (journal != null) {
+      journal.record(item, result);
+    }
+    return result;
+  }
+
+  private Result lookup(MediaItem item) {
+    long start = System.nanoTime();
+    Candidates candidates = domain.findWebCandidates(item);
+    Metrics.FIND_CANDIDATES.record(System.nanoTime() - start);
+    if (candidates == null) {
+      return new Result(true, null);
+    }
+    if (matcher == null || !Thread.currentThread().isVirtual()) {
+      return new Result(false, match(item, candidates));
+    }
+    try {
+      return new Result(false, matcher.submit(() -> match(item, candidates)).get());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return new Result(true, null);
+    } catch (ExecutionException e) {
+      Log.error("match of %s failed: %s\n", item, e.getCause());
+      return new Result(true, null);
+    }
+  }
+
+  // on a platform thread, so its CPU time (waiting for a core doesn't count) and allocations can be had.
+  private BestMatch match(MediaItem item, Candidates candidates) {
+    Events.Match event = new Events.Match();
+    event.begin();
+    long cpu = Metrics.cpuNanos();
+    long allocated = Metrics.allocatedBytes();
+    BestMatch match = domain.findBestMatch(item, candidates);
+    long cpuAfter = (cpu < 0) ? -1 : Metrics.cpuNanos();
+    if (cpuAfter >= 0) {
+      Metrics.FIND_BEST_MATCH.record(cpuAfter - cpu);
+    }
+    Metrics.MATCH_ALLOCATED_BYTES.addAllocatedSince(allocated);
+    if (event.shouldCommit()) {
+      event.domain = domain.getName();
+      event.title = item.getTitle();
+      event.candidates = (candidates.asRecords() != null) ? candidates.asRecords().size()
+          : (candidates.asCatalogRows() != null) ? candidates.asCatalogRows().length : 0;
+      event.bestTitle = (match == null) ? null : match.bestTitle;
+      event.titleDistance = (match == null) ? -1 : match.titleDistance;
+      event.authorDistance = (match == null) ? -1 : match.authorDistance;
+      event.commit();
+    }
+    return match;
+  }
+
+  @Override
+  public void close() {
+    if (executor != null) {
+      executor.shutdownNow();
+      matcher.shutdownNow();
+    }
+  }
+}
@@ -78,10 +78,10 @@ public class Mailer {
       body.append(",\"content\":[{\"type\":\"text/html\",\"value\": \"" + content.toString() + "\"}]}");
       request.setBody(body.toString());
       Response response = sg.api(request);
-      System.out.printf("sendMail returned code %d\n", response.getStatusCode());
+      Log.info("sendMail returned code %d\n", response.getStatusCode());
       //System.out.println(response.getBody());
     } catch (IOException ex) {
-      System.err.println(ex);
+      Log.error("%s\n", ex);
     }
   }
 
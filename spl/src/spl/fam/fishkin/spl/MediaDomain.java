@@ -1,7 +1,28 @@
 package fam.fishkin.spl;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
 // e.g. Seattle Public Library books, or Netflix movies, or ...
 public interface MediaDomain {
+  /**
+   * Where the items go when the file is rewritten, one at a time, as a run is done with them.
+   */
+  public interface Update {
+    /**
+     * @param item the next item, with its new status
+     */
+    public void add(MediaItem item);
+    /**
+     * All the items have been added: put the new file in place of the old one.
+     * Until this is called, the old file is left as it was.
+     * @return true if every item is now in the file; false if it couldn't be written, or only in part.
+     */
+    public boolean finish();
+  }
+
   public String getName();
   /**
    * Read the file for the desired list of media items
@@ -13,8 +34,39 @@ public interface MediaDomain {
    * Update the file of media items and their status
    * @param newList the new list
    * @param fileName the file to write to
+   * @return true if it was written.
    */
-  public void updateFile(Iterable<MediaItem> newList, String fileName);
+  public boolean updateFile(Iterable<MediaItem> newList, String fileName);
+  /**
+   * Read the file of desired media items as a stream, so they can be used as they're read,
+   * without holding them all at once. The default reads them all with readFile.
+   * @param fileName the file name
+   * @return the media items, in file order, null if the file can't be read. Close it when done.
+   */
+  public default Stream<MediaItem> streamFile(String fileName) {
+    Iterable<MediaItem> items = readFile(fileName);
+    return (items == null) ? null : StreamSupport.stream(items.spliterator(), false);
+  }
+  /**
+   * Start rewriting the file of media items, to be given them one at a time.
+   * The default holds on to them and calls updateFile when it's finished.
+   * @param fileName the file to write to
+   * @return the update, null if the file can't be written.
+   */
+  public default Update startUpdate(String fileName) {
+    List<MediaItem> items = new ArrayList<MediaItem>();
+    return new Update() {
+      @Override
+      public void add(MediaItem item) {
+        items.add(item);
+      }
+
+      @Override
+      public boolean finish() {
+        return updateFile(items, fileName);
+      }
+    };
+  }
   /**
    * Find the web elements with the set of candidates for the desired media item.
    * @param item the desired item
@@ -28,4 +80,19 @@ public interface MediaDomain {
    * @return the BestMatch.
    */
   public BestMatch findBestMatch(MediaItem item, Candidates candidates);
+  /**
+   * Tell the domain which items are about to be looked up, in order,
+   * in case it can do better than one lookup at a time. The default does nothing.
+   * It's called again as more items are read; each call adds to the ones before.
+   * @param items the next items that will be passed to findWebCandidates
+   */
+  public default void willLookUp(List<MediaItem> items) {
+  }
+  /**
+   * Do any expensive one-time setup, e.g. loading a catalog. It's called in the background
+   * at the start of a run, while other domains are already looking things up; a lookup that
+   * needs the setup waits for it. The default does nothing.
+   */
+  public default void warmUp() {
+  }
 }
@@ -0,0 +1,25 @@
+package fam.fishkin.spl;
+
+import java.util.function.Function;
+
+/**
+ * Makes a {@link MediaDomain} that can be asked for by name with -domain. Providers are found
+ * with {@link java.util.ServiceLoader}, the built-in ones too (module-info provides them, and
+ * so does META-INF/services for the class path), so a new domain can be added by putting a jar
+ * with a provider (listed in its META-INF/services/fam.fishkin.spl.MediaDomainProvider) on the
+ * class path. A provider needs a public constructor that takes no arguments.
+ * @author Ken Fishkin
+ *
+ */
+public interface MediaDomainProvider {
+  /**
+   * @return the name -domain knows it by, e.g. "spl". Not case-sensitive.
+   */
+  public String getName();
+
+  /**
+   * @param options the command-line options by name, e.g. "batch" for -batch. null for one that wasn't given.
+   * @return the domain, null if it can't be made from those options (after saying why).
+   */
+  public MediaDomain create(Function<String, String> options);
+}
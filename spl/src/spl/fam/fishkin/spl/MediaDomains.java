@@ -0,0 +1,161 @@
+package fam.fishkin.spl;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * The domains that can be asked for by name, found by {@link ServiceLoader} as a
+ * {@link MediaDomainProvider}: the built-in ones below, which this module provides, and any
+ * others on the path. One of the others with the same name as a built-in one takes its place.
+ * @author Ken Fishkin
+ *
+ */
+public class MediaDomains {
+  private static Map<String, MediaDomainProvider> providers = null;
+
+  private MediaDomains() {
+  }
+
+  /**
+   * @return every provider, by (lower-case) name
+   */
+  public static synchronized Map<String, MediaDomainProvider> providers() {
+    if (providers == null) {
+      providers = new LinkedHashMap<String, MediaDomainProvider>();
+      List<MediaDomainProvider> others = new ArrayList<MediaDomainProvider>();
+      Iterator<MediaDomainProvider> found = ServiceLoader.load(MediaDomainProvider.class).iterator();
+      for (;;) {
+        // a provider that can't be loaded is skipped, not the ones after it.
+        try {
+          if (!found.hasNext()) {
+            break;
+          }
+          MediaDomainProvider provider = found.next();
+          if (provider.getClass().getDeclaringClass() == MediaDomains.class) {
+            providers.put(provider.getName().toLowerCase(), provider);
+          } else {
+            others.add(provider);
+          }
+        } catch (ServiceConfigurationError e) {
+          Log.error("could not load a domain provider: %s\n", e);
+        }
+      }
+      for (MediaDomainProvider provider : others) {
+        providers.put(provider.getName().toLowerCase(), provider);
+      }
+    }
+    return providers;
+  }
+
+  /**
+   * @param name the name of the domain, e.g. "spl"
+   * @param options the command-line options by name, null for one that wasn't given.
+   * @return the domain, null if there's no such domain or it can't be made.
+   */
+  public static MediaDomain create(String name, Function<String, String> options) {
+    MediaDomainProvider provider = providers().get(name.strip().toLowerCase());
+    if (provider == null) {
+      Log.error("unknown domain: %s. Must be one of %s\n", name, String.join(", ", providers().keySet()));
+      return null;
+    }
+    return provider.create(options);
+  }
+
+  private static boolean isGiven(String option) {
+    return option != null && !option.isBlank();
+  }
+
+  /**
+   * 'spl' searches the library's web pages. It takes -library, which can name several libraries
+   * to search at once.
+   */
+  public static class SplProvider implements MediaDomainProvider {
+    private final boolean rss;
+
+    public SplProvider() {
+      this(false);
+    }
+
+    SplProvider(boolean rss) {
+      this.rss = rss;
+    }
+
+    @Override
+    public String getName() {
+      return rss ? "splrss" : "spl";
+    }
+
+    @Override
+    public MediaDomain create(Function<String, String> options) {
+      int batch = 1;
+      String temp = options.apply("batch");
+      if (isGiven(temp)) {
+        batch = Integer.parseInt(temp);
+      }
+      String libraries = options.apply("library");
+      if (!isGiven(libraries)) {
+        libraries = WebHelper.DEFAULT_LIBRARY;
+      }
+      List<SplDomain> members = new ArrayList<SplDomain>();
+      for (String library : libraries.split(",")) {
+        library = library.strip().toLowerCase();
+        if (library.isEmpty()) {
+          continue;
+        }
+        if (rss) {
+          SplRssDomain rssDomain = new SplRssDomain(library);
+          rssDomain.setMaxBatchSize(batch);
+          members.add(rssDomain);
+        } else {
+          members.add(new SplDomain(library));
+        }
+      }
+      if (members.isEmpty()) {
+        Log.error("no library in '%s'\n", libraries);
+        return null;
+      }
+      // with more than one library, each book is looked for at all of them at once.
+      return (members.size() == 1) ? members.get(0) : new FederatedDomain(members);
+    }
+  }
+
+  /**
+   * 'splrss' searches the library's RSS feeds. It takes -library, as 'spl' does, and -batch.
+   */
+  public static class SplRssProvider extends SplProvider {
+    public SplRssProvider() {
+      super(true);
+    }
+  }
+
+  /**
+   * 'netflix' matches an IMDb watchlist against the Netflix catalog. It takes -catalog and -catalogage.
+   */
+  public static class NetflixProvider implements MediaDomainProvider {
+    @Override
+    public String getName() {
+      return "netflix";
+    }
+
+    @Override
+    public MediaDomain create(Function<String, String> options) {
+      NetflixDomain netflixDomain = new NetflixDomain();
+      String catalog = options.apply("catalog");
+      String age = options.apply("catalogage");
+      if (isGiven(catalog) || isGiven(age)) {
+        long maxAgeHours = isGiven(age) ? Long.parseLong(age) : NetflixDomain.DEFAULT_SNAPSHOT_MAX_AGE_HOURS;
+        File snapshot = isGiven(catalog) ? new File(catalog) : NetflixDomain.DEFAULT_SNAPSHOT_FILE;
+        netflixDomain.setSnapshot(snapshot, TimeUnit.HOURS.toMillis(maxAgeHours));
+      }
+      return netflixDomain;
+    }
+  }
+}
@@ -1,6 +1,7 @@
 package fam.fishkin.spl;
 
 import java.util.ArrayList;
+import java.util.List;
 
 /**
  * A 'MediaItem' is a piece of consumable media. Presently, book or movie.
@@ -28,20 +29,31 @@ public interface MediaItem {
     int i = 0;
     for (MediaItem item: items) {
       i++;
-      if (i <= k) { // automatic winner
-        winners.add(item);
-        continue;
-      }
-      double odds = ((double) k) / ((double) i);
-      double roll = Math.random();
-      if (roll < odds) {
-        // we've got a winner. First, pick a loser.....
-        int loserIndex =(int) (Math.random() * winners.size());
-        winners.remove(loserIndex);
-        winners.add(item);
-      }
+      pick(winners, k, i, item);
     }
     return winners;
   }
+
+  /**
+   * One step of pickK, for when the items arrive one at a time.
+   * @param winners the winners so far. Updated in place.
+   * @param k how many to pick
+   * @param i how many items have been seen, counting this one
+   * @param item the i'th item
+   */
+  public static void pick(List<MediaItem> winners, int k, int i, MediaItem item) {
+    if (i <= k) { // automatic winner
+      winners.add(item);
+      return;
+    }
+    double odds = ((double) k) / ((double) i);
+    double roll = Math.random();
+    if (roll < odds) {
+      // we've got a winner. First, pick a loser.....
+      int loserIndex =(int) (Math.random() * winners.size());
+      winners.remove(loserIndex);
+      winners.add(item);
+    }
+  }
   public void upgrade(Format bestFormat, int year);
 }
@@ -0,0 +1,430 @@
+package fam.fishkin.spl;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Counters and timings for each stage of a run, so a long run can be watched while it goes:
+ * how long fetches, parses and matches take, how often the site throttles us, how far the
+ * run has got. They're cheap enough to keep all the time (a LongAdder per count), and are
+ * published as JMX MBeans (under "fam.fishkin.spl") and, if asked for, as Prometheus text
+ * on http://localhost:port/metrics.
+ * @author Ken Fishkin
+ *
+ */
+public class Metrics {
+  private static final String DOMAIN = "fam.fishkin.spl";
+  private static final String PREFIX = "spl_";
+
+  /** What JMX shows for a counter. */
+  public interface CounterMXBean {
+    public long getCount();
+  }
+
+  /** What JMX shows for a timing. Percentiles are to within a factor of 2. */
+  public interface HistogramMXBean {
+    public long getCount();
+    public double getMeanMillis();
+    public double getMaxMillis();
+    public double getP50Millis();
+    public double getP90Millis();
+    public double getP99Millis();
+  }
+
+  /** What JMX shows for a gauge. */
+  public interface GaugeMXBean {
+    public long getValue();
+  }
+
+  private abstract static class Metric {
+    final String name;
+    final String help;
+
+    Metric(String name, String help) {
+      this.name = name;
+      this.help = help;
+    }
+
+    abstract void appendPrometheus(StringBuilder out);
+  }
+
+  /**
+   * A count of things that happened.
+   */
+  public static class Counter extends Metric implements CounterMXBean {
+    private final LongAdder count = new LongAdder();
+
+    Counter(String name, String help) {
+      super(name, help);
+    }
+
+    public void increment() {
+      count.increment();
+    }
+
+    public void add(long n) {
+      count.add(n);
+    }
+
+    /**
+     * Add what the current thread has allocated since it had allocated (before), if the thread can tell.
+     * @param before what {@link Metrics#allocatedBytes()} said then
+     * @return false if it couldn't tell, e.g. on a virtual thread
+     */
+    public boolean addAllocatedSince(long before) {
+      long after = allocatedBytes();
+      if (before >= 0 && after >= before) {
+        count.add(after - before);
+        return true;
+      }
+      return false;
+    }
+
+    @Override
+    public long getCount() {
+      return count.sum();
+    }
+
+    @Override
+    void appendPrometheus(StringBuilder out) {
+      String metric = PREFIX + name + "_total";
+      out.append("# HELP ").append(metric).append(' ').append(help).append('\n');
+      out.append("# TYPE ").append(metric).append(" counter\n");
+      out.append(metric).append(' ').append(getCount()).append('\n');
+    }
+  }
+
+  /**
+   * How long something took, as a histogram with a bucket for each power of 2 nanoseconds,
+   * from about a microsecond up to about a minute.
+   */
+  public static class Histogram extends Metric implements HistogramMXBean {
+    // bucket 0 is up to 2^MIN_SHIFT ns; each bucket after that doubles; the last takes the rest.
+    private static final int MIN_SHIFT = 10;
+    private static final int BUCKETS = 27;
+    private final LongAdder[] buckets = new LongAdder[BUCKETS + 1];
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sumNanos = new LongAdder();
+    private final LongAccumulator maxNanos = new LongAccumulator(Long::max, 0);
+
+    Histogram(String name, String help) {
+      super(name, help);
+      for (int i = 0; i < buckets.length; i++) {
+        buckets[i] = new LongAdder();
+      }
+    }
+
+    /**
+     * @param nanos how long it took
+     */
+    public void record(long nanos) {
+      nanos = Math.max(0, nanos);
+      // 0 goes in the first bucket with the other quick ones (nanos - 1 would be all ones, the last bucket).
+      int bucket = Math.max(0, 64 - Long.numberOfLeadingZeros(Math.max(1, nanos) - 1) - MIN_SHIFT);
+      buckets[Math.min(bucket, BUCKETS)].increment();
+      count.increment();
+      sumNanos.add(nanos);
+      maxNanos.accumulate(nanos);
+    }
+
+    // the upper bound of a bucket, in ns.
+    private static long bound(int bucket) {
+      return 1L << (bucket + MIN_SHIFT);
+    }
+
+    @Override
+    public long getCount() {
+      return count.sum();
+    }
+
+    @Override
+    public double getMeanMillis() {
+      long n = count.sum();
+      return (n == 0) ? 0 : sumNanos.sum() / 1e6 / n;
+    }
+
+    @Override
+    public double getMaxMillis() {
+      return maxNanos.get() / 1e6;
+    }
+
+    /**
+     * @param q which quantile, e.g. 0.9
+     * @return the bound of the bucket it falls in, in ms
+     */
+    public double quantileMillis(double q) {
+      long n = count.sum();
+      if (n == 0) {
+        return 0;
+      }
+      long seen = 0;
+      for (int i = 0; i < BUCKETS; i++) {
+        seen += buckets[i].sum();
+        if (seen >= q * n) {
+          return Math.min(bound(i), maxNanos.get()) / 1e6;
+        }
+      }
+      return getMaxMillis();
+    }
+
+    @Override
+    public double getP50Millis() {
+      return quantileMillis(0.5);
+    }
+
+    @Override
+    public double getP90Millis() {
+      return quantileMillis(0.9);
+    }
+
+    @Override
+    public double getP99Millis() {
+      return quantileMillis(0.99);
+    }
+
+    @Override
+    void appendPrometheus(StringBuilder out) {
+      String metric = PREFIX + name + "_seconds";
+      out.append("# HELP ").append(metric).append(' ').append(help).append('\n');
+      out.append("# TYPE ").append(metric).append(" histogram\n");
+      long cumulative = 0;
+      for (int i = 0; i < BUCKETS; i++) {
+        cumulative += buckets[i].sum();
+        out.append(metric).append("_bucket{le=\"").append(bound(i) / 1e9).append("\"} ").append(cumulative).append('\n');
+      }
+      cumulative += buckets[BUCKETS].sum();
+      out.append(metric).append("_bucket{le=\"+Inf\"} ").append(cumulative).append('\n');
+      out.append(metric).append("_sum ").append(sumNanos.sum() / 1e9).append('\n');
+      out.append(metric).append("_count ").append(cumulative).append('\n');
+    }
+
+    @Override
+    public String toString() {
+      return String.format("%d, p50 %.1fms, p90 %.1fms, max %.1fms", getCount(), getP50Millis(), getP90Millis(),
+          getMaxMillis());
+    }
+  }
+
+  // a value read when it's asked for.
+  private static class Gauge extends Metric implements GaugeMXBean {
+    private final LongSupplier value;
+
+    Gauge(String name, String help, LongSupplier value) {
+      super(name, help);
+      this.value = value;
+    }
+
+    @Override
+    public long getValue() {
+      return value.getAsLong();
+    }
+
+    @Override
+    void appendPrometheus(StringBuilder out) {
+      String metric = PREFIX + name;
+      out.append("# HELP ").append(metric).append(' ').append(help).append('\n');
+      out.append("# TYPE ").append(metric).append(" gauge\n");
+      out.append(metric).append(' ').append(getValue()).append('\n');
+    }
+  }
+
+  private static final List<Metric> all = new ArrayList<Metric>();
+  private static volatile long lastProgressNanos = System.nanoTime();
+  private static HttpServer server = null;
+
+  public static final Histogram FETCH = histogram("fetch", "Time waiting on the network for one web request.");
+  public static final Histogram PARSE_HTML = histogram("parse_html", "Time to parse a search results page.");
+  public static final Histogram PARSE_RSS = histogram("parse_rss", "Time to parse a search results feed.");
+  public static final Histogram FIND_CANDIDATES = histogram("find_candidates",
+      "Wall time of findWebCandidates, including waiting for a turn at the web site.");
+  public static final Histogram FIND_BEST_MATCH = histogram("find_best_match",
+      "CPU time of findBestMatch; not recorded if the JVM can't measure thread CPU time.");
+  public static final Histogram UPDATE_FILE = histogram("update_file", "Time to write out the updated list.");
+  public static final Counter RETRIES = counter("retries", "Web requests sent again after the site throttled them.");
+  public static final Counter FETCH_ERRORS = counter("fetch_errors", "Web requests that failed outright.");
+  public static final Counter ITEMS_READ = counter("items_read", "Items read from the list.");
+  public static final Counter ITEMS_CHECKED = counter("items_checked", "Items looked up.");
+  public static final Counter UPGRADES = counter("upgrades", "Items whose status got better.");
+  public static final Counter PARSE_ALLOCATED_BYTES = counter("parse_allocated_bytes",
+      "Bytes allocated parsing results on platform threads; see parse_allocation_unmeasured.");
+  public static final Counter PARSE_UNMEASURED = counter("parse_allocation_unmeasured",
+      "Parses whose allocations couldn't be measured, because they ran on a virtual thread (-parallel).");
+  public static final Counter MATCH_ALLOCATED_BYTES = counter("find_best_match_allocated_bytes",
+      "Bytes allocated by findBestMatch, where the thread can tell.");
+
+  static {
+    gauge("cache_fresh_hits", "Pages served from the cache without asking the site.",
+        () -> (WebHelper.getCache() == null) ? 0 : WebHelper.getCache().getFreshHits());
+    gauge("cache_revalidated", "Cached pages the site said were still good.",
+        () -> (WebHelper.getCache() == null) ? 0 : WebHelper.getCache().getRevalidated());
+    gauge("cache_misses", "Pages not in the cache.",
+        () -> (WebHelper.getCache() == null) ? 0 : WebHelper.getCache().getMisses());
+    gauge("connections_opened_estimate", "HTTP connections opened, estimated from keep-alive timing.",
+        HttpTransport::getEstimatedConnectionsOpened);
+    gauge("connections_reused_estimate", "Requests sent on an already open connection, estimated from keep-alive timing.",
+        HttpTransport::getEstimatedConnectionsReused);
+    gauge("seconds_since_progress", "Seconds since the last item was finished; a stall shows up as this climbing.",
+        () -> (System.nanoTime() - lastProgressNanos) / 1_000_000_000L);
+  }
+
+  private Metrics() {
+  }
+
+  private static synchronized Histogram histogram(String name, String help) {
+    Histogram histogram = new Histogram(name, help);
+    all.add(histogram);
+    return histogram;
+  }
+
+  private static synchronized Counter counter(String name, String help) {
+    Counter counter = new Counter(name, help);
+    all.add(counter);
+    return counter;
+  }
+
+  private static synchronized void gauge(String name, String help, LongSupplier value) {
+    all.add(new Gauge(name, help, value));
+  }
+
+  /**
+   * An item has been dealt with: the run is making progress.
+   */
+  public static void progress() {
+    lastProgressNanos = System.nanoTime();
+  }
+
+  /**
+   * @return the CPU time of the current thread in ns, -1 if that can't be had (e.g. on a virtual thread).
+   */
+  public static long cpuNanos() {
+    ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    return threads.isCurrentThreadCpuTimeSupported() ? threads.getCurrentThreadCpuTime() : -1;
+  }
+
+  /**
+   * @return the bytes the current thread has allocated so far, -1 if that can't be had.
+   */
+  public static long allocatedBytes() {
+    ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    if (threads instanceof com.sun.management.ThreadMXBean) {
+      return ((com.sun.management.ThreadMXBean) threads).getCurrentThreadAllocatedBytes();
+    }
+    return -1;
+  }
+
+  /**
+   * Make the metrics visible over JMX, e.g. in jconsole.
+   */
+  public static synchronized void registerMBeans() {
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    for (Metric metric : all) {
+      String type = (metric instanceof Histogram) ? "Timing" : (metric instanceof Counter) ? "Counter" : "Gauge";
+      try {
+        ObjectName name = new ObjectName(DOMAIN + ":type=" + type + ",name=" + metric.name);
+        if (!server.isRegistered(name)) {
+          server.registerMBean(metric, name);
+        }
+      } catch (JMException e) {
+        Log.error("could not register metric %s: %s\n", metric.name, e);
+      }
+    }
+  }
+
+  /**
+   * Serve the metrics as Prometheus text, on http://localhost:port/metrics. Only this machine can see them.
+   * @param port the port
+   * @throws IOException if it can't listen on the port
+   */
+  public static synchronized void serve(int port) throws IOException {
+    if (server != null) {
+      return;
+    }
+    server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+    server.createContext("/metrics", exchange -> {
+      byte[] body = prometheus().getBytes(StandardCharsets.UTF_8);
+      exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+      exchange.sendResponseHeaders(200, body.length);
+      try (OutputStream out = exchange.getResponseBody()) {
+        out.write(body);
+      }
+    });
+    server.start();
+  }
+
+  /**
+   * Stop serving the metrics, if they were being served.
+   */
+  public static synchronized void stop() {
+    if (server != null) {
+      server.stop(0);
+      server = null;
+    }
+  }
+
+  /**
+   * @return every metric, in the Prometheus text format, plus the bytes allocated by each live platform thread.
+   * Virtual threads aren't listed: the JVM only reports platform threads.
+   */
+  public static String prometheus() {
+    StringBuilder out = new StringBuilder();
+    List<Metric> metrics;
+    synchronized (Metrics.class) {
+      metrics = new ArrayList<Metric>(all);
+    }
+    for (Metric metric : metrics) {
+      metric.appendPrometheus(out);
+    }
+    ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    if (threads instanceof com.sun.management.ThreadMXBean) {
+      long[] ids = threads.getAllThreadIds();
+      long[] allocated = ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(ids);
+      ThreadInfo[] infos = threads.getThreadInfo(ids);
+      String metric = PREFIX + "thread_allocated_bytes";
+      out.append("# HELP ").append(metric).append(" Bytes allocated by each live platform thread so far; virtual threads aren't listed.\n");
+      out.append("# TYPE ").append(metric).append(" gauge\n");
+      for (int i = 0; i < ids.length; i++) {
+        if (infos[i] == null || allocated[i] < 0) {
+          continue;
+        }
+        String thread = infos[i].getThreadName().replace("\\", "\\\\").replace("\"", "\\\"");
+        out.append(metric).append("{thread=\"").append(thread).append("\",id=\"").append(ids[i]).append("\"} ")
+            .append(allocated[i]).append('\n');
+      }
+    }
+    return out.toString();
+  }
+
+  /**
+   * @return the timings that have anything in them, for the end-of-run summary.
+   */
+  public static String summary() {
+    StringBuilder out = new StringBuilder();
+    for (Histogram histogram : new Histogram[] { FETCH, PARSE_HTML, PARSE_RSS, FIND_CANDIDATES, FIND_BEST_MATCH,
+        UPDATE_FILE }) {
+      if (histogram.getCount() > 0) {
+        out.append((out.length() == 0) ? "" : "; ").append(histogram.name).append(' ').append(histogram);
+      }
+    }
+    if (RETRIES.getCount() > 0) {
+      out.append("; retries ").append(RETRIES.getCount());
+    }
+    return out.toString();
+  }
+}
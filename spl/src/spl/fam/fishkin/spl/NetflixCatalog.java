@@ -0,0 +1,145 @@
+package fam.fishkin.spl;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+/**
+ * A compact snapshot of the Netflix catalog: just the titles and years.
+ * It's saved to disk after a scrape and memory-mapped on later runs, so a run doesn't
+ * have to download and parse the whole catalog page again until the snapshot gets too old.
+ * <p>
+ * The file is: a header (magic, version, when it was scraped, how many movies), then
+ * one (title offset, title length, year) record per movie, then all the titles, in UTF-8.
+ * @author Ken Fishkin
+ *
+ */
+public class NetflixCatalog {
+  private static final int MAGIC = 0x4e464c58; // "NFLX"
+  private static final int VERSION = 1;
+  private static final int HEADER_BYTES = 4 + 4 + 8 + 4;
+  private static final int RECORD_BYTES = 4 + 4 + 4;
+
+  private final ByteBuffer buffer;
+  private final int size;
+  private final long scrapedAtMillis;
+
+  private NetflixCatalog(ByteBuffer buffer) throws IOException {
+    this.buffer = buffer.order(ByteOrder.BIG_ENDIAN);
+    if (buffer.limit() < HEADER_BYTES || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+      throw new IOException("not a catalog snapshot");
+    }
+    this.scrapedAtMillis = buffer.getLong(8);
+    this.size = buffer.getInt(16);
+    if (size < 0 || HEADER_BYTES + (long) size * RECORD_BYTES > buffer.limit()) {
+      throw new IOException("catalog snapshot is truncated");
+    }
+  }
+
+  /**
+   * Build a catalog from scraped titles and years.
+   * @param titles the titles
+   * @param years the years, same order
+   * @return the catalog
+   */
+  public static NetflixCatalog of(List<String> titles, List<Integer> years) {
+    byte[][] encoded = new byte[titles.size()][];
+    int textBytes = 0;
+    for (int i = 0; i < encoded.length; i++) {
+      encoded[i] = titles.get(i).getBytes(StandardCharsets.UTF_8);
+      textBytes += encoded[i].length;
+    }
+    int textStart = HEADER_BYTES + encoded.length * RECORD_BYTES;
+    ByteBuffer buffer = ByteBuffer.allocate(textStart + textBytes);
+    buffer.putInt(MAGIC).putInt(VERSION).putLong(System.currentTimeMillis()).putInt(encoded.length);
+    int offset = textStart;
+    for (int i = 0; i < encoded.length; i++) {
+      buffer.putInt(offset).putInt(encoded[i].length).putInt(years.get(i));
+      offset += encoded[i].length;
+    }
+    for (byte[] title : encoded) {
+      buffer.put(title);
+    }
+    buffer.flip();
+    try {
+      return new NetflixCatalog(buffer);
+    } catch (IOException e) {
+      // we just built it.
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * Memory-map a saved snapshot.
+   * @param file the snapshot file
+   * @return the catalog
+   * @throws IOException if the file can't be read, or isn't a snapshot
+   */
+  public static NetflixCatalog load(File file) throws IOException {
+    try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+      // the mapping stays valid after the channel is closed.
+      return new NetflixCatalog(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+    }
+  }
+
+  /**
+   * Save the snapshot, via a temp file in the same directory so a crash can't leave half a snapshot.
+   * @param file where to save it
+   * @throws IOException if it couldn't be saved
+   */
+  public void save(File file) throws IOException {
+    Path dest = file.getAbsoluteFile().toPath();
+    Files.createDirectories(dest.getParent());
+    Path temp = Files.createTempFile(dest.getParent(), "catalog", ".tmp");
+    try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+      ByteBuffer copy = buffer.duplicate();
+      copy.position(0);
+      while (copy.hasRemaining()) {
+        channel.write(copy);
+      }
+      channel.force(true);
+    }
+    Files.move(temp, dest, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /**
+   * @return how many movies are in the catalog
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * @return when the catalog was scraped
+   */
+  public long getScrapedAtMillis() {
+    return scrapedAtMillis;
+  }
+
+  /**
+   * @param i which movie
+   * @return its title
+   */
+  public String title(int i) {
+    int record = HEADER_BYTES + i * RECORD_BYTES;
+    byte[] bytes = new byte[buffer.getInt(record + 4)];
+    buffer.get(buffer.getInt(record), bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  /**
+   * @param i which movie
+   * @return the year it came out
+   */
+  public int year(int i) {
+    return buffer.getInt(HEADER_BYTES + i * RECORD_BYTES + 8);
+  }
+}
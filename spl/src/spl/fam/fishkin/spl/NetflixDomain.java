@@ -1,24 +1,42 @@
 package fam.fishkin.spl;
 
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.Map;
-import org.jsoup.Connection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 import org.jsoup.Jsoup;
 import org.jsoup.nodes.Document;
 import org.jsoup.nodes.Element;
 import org.jsoup.select.Elements;
 
 public class NetflixDomain implements MediaDomain {
-  // get all the Netflix movies at once. We want the query for a particular
-  // movie to still be in HTML form (as Elements). And we want to support near-matches,
-  // so don't just put 'em all in a hash table keyed by Table.
-  // however, we will map by first two letters, as otherwise it's way too slow.
-  private Map<String, Elements> moviesMap = null;
+  public static final File DEFAULT_SNAPSHOT_FILE = new File(System.getProperty("user.home"), ".spl/netflix-catalog.bin");
+  public static final long DEFAULT_SNAPSHOT_MAX_AGE_HOURS = 24;
+  // get all the Netflix movies at once, into a compact catalog. We want to support near-matches,
+  // so don't just put 'em all in a hash table keyed by Table: index the titles so we can
+  // find every one that's close to the one we want.
+  private volatile TitleIndex titleIndex = null;
+  private NetflixCatalog catalog = null;
+  // the catalog couldn't be had: don't try again (and again) for every movie in the list.
+  private boolean loadFailed = false;
+  private File snapshotFile = DEFAULT_SNAPSHOT_FILE;
+  private long snapshotMaxAgeMillis = TimeUnit.HOURS.toMillis(DEFAULT_SNAPSHOT_MAX_AGE_HOURS);
+
+  /**
+   * Where to keep the catalog snapshot, and how old it may get before the catalog is scraped again.
+   * @param file the snapshot file, null to always scrape
+   * @param maxAgeMillis the most age allowed
+   */
+  public void setSnapshot(File file, long maxAgeMillis) {
+    snapshotFile = file;
+    snapshotMaxAgeMillis = maxAgeMillis;
+  }
 
   @Override
   public String getName() {
@@ -27,6 +45,8 @@ public class NetflixDomain implements MediaDomain {
 
   @Override
   public Iterable<MediaItem> readFile(String fileName) {
+    Events.ReadFile event = new Events.ReadFile();
+    event.begin();
     ArrayList<MediaItem> movieList = new ArrayList<MediaItem>();
     final String splitOn = ",";
     try {
@@ -49,7 +69,7 @@ public class NetflixDomain implements MediaDomain {
         String[] args = line.split(splitOn);
         int len = args.length;
         if (len < 11) {
-          System.err.printf("only %d fields in line '%s' - need at least 11\n", len, line);
+          Log.error("only %d fields in line '%s' - need at least 11\n", len, line);
           continue;
         }
         String title = args[5];
@@ -60,87 +80,157 @@ public class NetflixDomain implements MediaDomain {
         } catch (NumberFormatException e) {
 
         }
-        System.out.printf("movie: title=[%s], year = %d\n", title, year);
+        Log.debug("movie: title=[%s], year = %d\n", title, year);
         if (year > 0) {
           Movie movie = new Movie(title, year);
           movieList.add(movie);
         }
       }
+      event.record(fileName, 0, new File(fileName).length(), movieList.size());
       return movieList;
     } catch (FileNotFoundException e) {
-      System.err.printf("could not read input file %s\n", fileName);
+      Log.error("could not read input file %s\n", fileName);
       return null;
     }
   }
 
   @Override
-  public void updateFile(Iterable<MediaItem> newList, String fileName) {
+  public boolean updateFile(Iterable<MediaItem> newList, String fileName) {
+    // the watchlist isn't ours to change: just show what's available.
+    Events.UpdateFile event = new Events.UpdateFile();
+    event.begin();
     for (MediaItem item : newList) {
       if (item.isInDesiredFormat()) {
-        System.out.println(item);
+        Log.info("%s\n", item);
       }
     }
+    event.record(fileName, 0, 0);
+    return true;
   }
   
-  private String getKey(String k) {
-    if (k == null || k.isEmpty()) {
-      return "";
+  @Override
+  public Candidates findWebCandidates(MediaItem item) {
+    if (!(item instanceof Movie)) {
+      return null;
+    }
+    TitleIndex titleIndex = loadMovies();
+    if (titleIndex == null) {
+      return null;
     }
-    k = k.toLowerCase();
-    if (k.length() < 2) {
-      return k;
+    // the year is indexed along with the title, so the closest key is the closest movie. That's
+    // only wanted if it's close enough to be a match; beyond that, all that matters is whether
+    // there's a title close enough to be reported as too far off, or the movie isn't on Netflix.
+    Movie movie = (Movie) item;
+    String key = TitleIndex.withYear(movie.getTitle(), movie.year);
+    int[] rows = titleIndex.nearest(key, Spl.MIN_DISTANCE, 0);
+    if (rows.length == 0) {
+      int row = titleIndex.first(key, Spl.MAX_DISTANCE);
+      rows = (row < 0) ? rows : new int[] { row };
     }
-    return k.substring(0,2);
+    return new Candidates(catalog, rows);
   }
 
   @Override
-  public Candidates findWebCandidates(MediaItem item) {
-    if (!(item instanceof Movie)) {
+  public void warmUp() {
+    loadMovies();
+  }
+
+  // lookups may run concurrently, so make sure only one of them does the (big) download.
+  private synchronized TitleIndex loadMovies() {
+    if (titleIndex == null && !loadFailed) {
+      NetflixCatalog loaded = loadSnapshot();
+      if (loaded == null) {
+        loaded = scrape();
+        if (loaded == null) {
+          loadFailed = true;
+          Log.error("no Netflix catalog, so no movies will be found this run\n");
+          return null;
+        }
+        if (snapshotFile != null) {
+          try {
+            loaded.save(snapshotFile);
+          } catch (IOException e) {
+            Log.error("could not save catalog snapshot %s: %s\n", snapshotFile, e);
+          }
+        }
+      }
+      catalog = loaded;
+      titleIndex = TitleIndex.of(loaded);
+    }
+    return titleIndex;
+  }
+
+  // the saved catalog, if there is one and it's recent enough.
+  private NetflixCatalog loadSnapshot() {
+    if (snapshotFile == null || !snapshotFile.exists()) {
       return null;
     }
-    if (moviesMap == null) {
-      moviesMap = new HashMap<String, Elements>();
-      String base = "https://www.finder.com/netflix-movies";
-      String encoded = base; // no query params
-      final String userAgent =
-          "Mozilla/5.0 (Windows NT 10.0; Win64; x64) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/80.0.3987.122 Safari/537.36";
-      Connection connection = Jsoup.connect(encoded).userAgent(userAgent);
-      Document doc;
-      try {
-        doc = connection.get();
-      } catch (IOException e) {
-        System.err.printf("toResultsList: IO exception %s\n", e.toString());
+    try {
+      NetflixCatalog loaded = NetflixCatalog.load(snapshotFile);
+      if (System.currentTimeMillis() - loaded.getScrapedAtMillis() > snapshotMaxAgeMillis) {
+        Log.info("catalog snapshot %s is too old, scraping again\n", snapshotFile);
         return null;
       }
-      Elements resultList = doc.select("div.ts-table-container");
-      System.out.printf("size1 = %d\n", resultList.size());
-      resultList = resultList.select("table.luna-table");
-      System.out.printf("size2 = %d\n", resultList.size());
-      resultList = resultList.select("tr");
-      System.out.printf("size3 = %d\n", resultList.size());
-      for (Element row : resultList) {
-        Element titleElement = row.selectFirst("td[data-title='Title']");
-        Element yearElement = row.selectFirst("td[data-title='Year of release']");
-        if (titleElement == null || yearElement == null) {
-          continue;
-        }
-        if (titleElement.text() == null || yearElement.text() == null) {
-          continue;
-        }
-        String first = getKey(titleElement.text());
-        Elements current = moviesMap.get(first);
-        if (current == null) {
-          current = new Elements();
-        }
-        current.add(row);
-        moviesMap.put(first, current);
-        
+      return loaded;
+    } catch (IOException e) {
+      Log.error("could not read catalog snapshot %s: %s\n", snapshotFile, e);
+      return null;
+    }
+  }
+
+  private NetflixCatalog scrape() {
+    String base = "https://www.finder.com/netflix-movies";
+    String encoded = base; // no query params
+    // paced (and cached) like any other page, so it waits its turn on the site like the rest.
+    Document doc;
+    try {
+      HttpTransport.Response response = WebHelper.fetch(encoded);
+      if (response.statusCode != HttpURLConnection.HTTP_OK) {
+        Log.error("toResultsList: got status %d on %s\n", response.statusCode, encoded);
+        return null;
+      }
+      try (InputStream in = response.bodyStream()) {
+        doc = Jsoup.parse(in, null, encoded);
+      }
+    } catch (IOException e) {
+      Log.error("toResultsList: IO exception %s\n", e.toString());
+      return null;
+    }
+    Elements resultList = doc.select("div.ts-table-container");
+    Log.debug("size1 = %d\n", resultList.size());
+    resultList = resultList.select("table.luna-table");
+    Log.debug("size2 = %d\n", resultList.size());
+    resultList = resultList.select("tr");
+    Log.debug("size3 = %d\n", resultList.size());
+    List<String> titles = new ArrayList<String>();
+    List<Integer> years = new ArrayList<Integer>();
+    for (Element row : resultList) {
+      Element titleElement = row.selectFirst("td[data-title='Title']");
+      Element yearElement = row.selectFirst("td[data-title='Year of release']");
+      if (titleElement == null || yearElement == null) {
+        continue;
+      }
+      if (titleElement.text() == null || yearElement.text() == null) {
+        continue;
       }
+      try {
+        years.add(Integer.parseInt(yearElement.text().trim()));
+      } catch (NumberFormatException e) {
+        continue;
+      }
+      titles.add(titleElement.text());
     }
-    String first = getKey(item.getTitle());
-    return new Candidates(moviesMap.get(first));
+    // only the titles and years are kept; the page itself can be garbage collected.
+    return NetflixCatalog.of(titles, years);
   }
 
+  /**
+   * The closest title in the catalog, out of the index's candidates: the closest ones if any is close
+   * enough to be a match, otherwise one that's close enough to report, not necessarily the closest.
+   * If it found none within range, the movie isn't on Netflix: that's reported as a match too far
+   * off to take, which is what makes an unknown movie an upgrade to NO, without scanning the whole
+   * catalog for a title that would be too far off anyway.
+   */
   @Override
   public BestMatch findBestMatch(MediaItem desiredItem, Candidates candidates) {
 
@@ -148,37 +238,35 @@ public class NetflixDomain implements MediaDomain {
 	  if (desiredItem == null || candidates == null) {
 		  return null;
 	  }
-	  Elements elts = candidates.asElements();
-	  if (elts == null || elts.isEmpty()) {
+	  NetflixCatalog movies = candidates.asCatalog();
+	  int[] rows = candidates.asCatalogRows();
+	  if (movies == null || rows == null || movies.size() == 0) {
 		  return null;
 	  }
 	  if (!(desiredItem instanceof Movie)) {
 		  return null;
 	  }
+	  if (rows.length == 0) {
+		  return new BestMatch(desiredItem, null, Spl.MAX_DISTANCE + 1, null, 0, Format.NO);
+	  }
     Movie desired = (Movie) desiredItem;
     BestMatch best = new BestMatch(desiredItem, null, Integer.MAX_VALUE, null, 0, Format.NO);
-    String desiredTitle = desired.getTitle() + " (" + desired.year + ")";
+    String desiredTitle = TitleIndex.withYear(desired.getTitle(), desired.year);
+    Distance.Query query = Distance.query(desiredTitle);
     // by adding the year into the title, we can have a single distance metric.
-    for (Element candidate : elts) {
-      Element titleElement = candidate.selectFirst("td[data-title='Title']");
-      Element yearElement = candidate.selectFirst("td[data-title='Year of release']");
-      if (titleElement == null || yearElement == null) {
-        continue;
-      }
-      if (titleElement.text() == null || yearElement.text() == null) {
-        continue;
-      }
-      String thisTitle = titleElement.text() + " (" + yearElement.text() + ")";
-      int thisDist = Distance.LevenshteinDistance(desiredTitle, thisTitle);
-      if (thisDist < best.titleDistance) {
-
-        best.bestTitle = thisTitle;
-        best.titleDistance = thisDist;
-        best.bestFormat = Format.VIDEO;
-      }
+    String[] titles = new String[rows.length];
+    for (int i = 0; i < rows.length; i++) {
+      titles[i] = TitleIndex.withYear(movies.title(rows[i]), movies.year(rows[i]));
+    }
+    // scored together, so they can share SIMD lanes when the Vector API is there.
+    int closest = query.closest(titles);
+    if (closest >= 0) {
+      best.bestTitle = titles[closest];
+      best.titleDistance = query.distance(titles[closest]);
+      best.bestFormat = Format.VIDEO;
     }
     /*
-    System.out.printf("looking for [%s], found [%s],  best distance of [%d]\n", desiredTitle,
+    Log.debug("looking for [%s], found [%s],  best distance of [%d]\n", desiredTitle,
         best.bestTitle, best.titleDistance);
         */
     return best;
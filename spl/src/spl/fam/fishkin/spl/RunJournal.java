@@ -0,0 +1,228 @@
+package fam.fishkin.spl;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * An append-only record of the lookups done so far in a run, so a run that dies
+ * part way through can pick up where it left off instead of starting over.
+ * Each finished lookup is appended as one line; the file is forced to disk every
+ * few lines, so a crash costs at most that many lookups.
+ * The journal is tied to the input file it was made for: if that file changes, the
+ * journal is thrown away.
+ * @author Ken Fishkin
+ *
+ */
+public class RunJournal implements AutoCloseable {
+  public static final String SUFFIX = ".journal";
+  // force the journal to disk every this many records.
+  public static final int SYNC_EVERY = 16;
+  private static final String HEADER = "# spl journal";
+  private static final String NULL = "\\N";
+
+  private final File file;
+  // the items being worked on, and where they are in the input.
+  private final Map<MediaItem, Integer> indexOf = new IdentityHashMap<MediaItem, Integer>();
+  private final Map<MediaItem, LookupPipeline.Result> replayed = new IdentityHashMap<MediaItem, LookupPipeline.Result>();
+  // what an earlier run recorded, by index, for the items not read in yet.
+  private final Map<Integer, String[]> earlier = new HashMap<Integer, String[]>();
+  private final FileOutputStream stream;
+  private final BufferedWriter out;
+  private int unsynced = 0;
+
+  /**
+   * Open the journal for a run, ready to replay whatever an earlier, unfinished run of the same input left behind.
+   * The items are then passed to {@link #add} as they're read.
+   * @param inputFileName the input file
+   * @throws IOException if the journal can't be written
+   */
+  public RunJournal(String inputFileName) throws IOException {
+    File input = new File(inputFileName);
+    this.file = new File(inputFileName + SUFFIX);
+    String header = HEADER + "\t" + input.length() + "\t" + input.lastModified();
+    boolean resume = file.exists() && replay(header);
+    stream = new FileOutputStream(file, resume);
+    out = new BufferedWriter(new OutputStreamWriter(stream, StandardCharsets.UTF_8));
+    if (!resume) {
+      out.write(header);
+      out.newLine();
+      sync();
+    } else {
+      Log.info("resuming from %s: %d lookups already done\n", file, earlier.size());
+    }
+  }
+
+  // read an existing journal. Returns false if it's not for this input.
+  private boolean replay(String header) {
+    try (BufferedReader in = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+      String line = in.readLine();
+      if (!header.equals(line)) {
+        Log.info("%s is from a different version of the input, starting over\n", file);
+        return false;
+      }
+      while ((line = in.readLine()) != null) {
+        String[] fields = line.split("\t", -1);
+        // a crash can leave a partial last line; skip anything that doesn't parse.
+        // (the library at the end was added later, so it may not be there.)
+        if (fields.length != 8 && fields.length != 9) {
+          continue;
+        }
+        try {
+          int index = Integer.parseInt(fields[0]);
+          if (index >= 0) {
+            earlier.put(index, fields);
+          }
+        } catch (NumberFormatException e) {
+          continue;
+        }
+      }
+      return true;
+    } catch (IOException e) {
+      Log.error("could not read journal %s, starting over: %s\n", file, e);
+      earlier.clear();
+      return false;
+    }
+  }
+
+  /**
+   * Tell the journal about the next item read from the input, so its lookup can be recorded,
+   * or what an earlier run recorded for it replayed.
+   * @param item the item
+   * @param index where it is in the input, counting from 0
+   */
+  public synchronized void add(MediaItem item, int index) {
+    indexOf.put(item, index);
+    String[] fields = earlier.remove(index);
+    if (fields == null) {
+      return;
+    }
+    if (!fields[1].equals(clean(item.toString()))) {
+      Log.info("%s doesn't match the input, not using the rest of it\n", file);
+      earlier.clear();
+      return;
+    }
+    try {
+      boolean noCandidates = fields[2].equals("none");
+      BestMatch best = null;
+      if (fields[2].equals("match")) {
+        best = new BestMatch(item, unclean(fields[3]), Integer.parseInt(fields[4]), unclean(fields[5]),
+            Integer.parseInt(fields[6]), Format.valueOf(fields[7]));
+        if (fields.length > 8 && !fields[8].isEmpty()) {
+          best.library = unclean(fields[8]);
+        }
+      }
+      replayed.put(item, new LookupPipeline.Result(noCandidates, best));
+    } catch (IllegalArgumentException e) {
+      // a garbled line: look it up again.
+    }
+  }
+
+  /**
+   * The run is done with an item: the journal can let go of it.
+   * @param item the item
+   */
+  public synchronized void forget(MediaItem item) {
+    indexOf.remove(item);
+    replayed.remove(item);
+  }
+
+  /**
+   * @param item an item
+   * @return the result an earlier run recorded for it, or null if there isn't one.
+   */
+  public synchronized LookupPipeline.Result replayed(MediaItem item) {
+    return replayed.get(item);
+  }
+
+  /**
+   * Record the result of a lookup.
+   * @param item the item looked up
+   * @param result the result
+   */
+  public synchronized void record(MediaItem item, LookupPipeline.Result result) {
+    Integer index = indexOf.get(item);
+    if (index == null) {
+      return;
+    }
+    StringBuilder line = new StringBuilder();
+    line.append(index).append('\t').append(clean(item.toString())).append('\t');
+    BestMatch best = result.best;
+    if (result.noCandidates) {
+      line.append("none\t\t\t\t\t");
+    } else if (best == null) {
+      line.append("nomatch\t\t\t\t\t");
+    } else {
+      line.append("match\t").append(clean(best.bestTitle)).append('\t').append(best.titleDistance).append('\t')
+          .append(clean(best.bestAuthor)).append('\t').append(best.authorDistance).append('\t')
+          .append(best.bestFormat.name()).append('\t');
+      if (best.library != null) {
+        line.append(clean(best.library));
+      }
+    }
+    try {
+      out.write(line.toString());
+      out.newLine();
+      if (++unsynced >= SYNC_EVERY) {
+        sync();
+      }
+    } catch (IOException e) {
+      Log.error("could not write journal %s: %s\n", file, e);
+    }
+  }
+
+  private void sync() throws IOException {
+    out.flush();
+    stream.getFD().sync();
+    unsynced = 0;
+  }
+
+  @Override
+  public synchronized void close() {
+    try {
+      sync();
+      out.close();
+    } catch (IOException e) {
+      Log.error("could not close journal %s: %s\n", file, e);
+    }
+  }
+
+  /**
+   * The run finished but its results didn't all make it into the output: keep the journal,
+   * so the next run of the same input takes them from it instead of looking them up again.
+   */
+  public void keep() {
+    close();
+    Log.info("keeping journal %s for the next run\n", file);
+  }
+
+  /**
+   * The run finished and its results are safely in the output: the journal isn't needed any more.
+   */
+  public void finish() {
+    close();
+    if (!file.delete()) {
+      Log.error("could not delete journal %s\n", file);
+    }
+  }
+
+  // tabs and newlines would break the line format.
+  private static String clean(String s) {
+    if (s == null) {
+      return NULL;
+    }
+    return s.replace('\t', ' ').replace('\n', ' ').replace('\r', ' ');
+  }
+
+  private static String unclean(String s) {
+    return NULL.equals(s) ? null : s;
+  }
+}
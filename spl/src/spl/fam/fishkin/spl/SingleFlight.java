@@ -0,0 +1,129 @@
+package fam.fishkin.spl;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Makes sure the same piece of work is only done once at a time: if a caller asks
+ * for a key that another caller is already computing, it waits for and shares that result
+ * instead of doing the work again. The most recent results are also remembered, so a
+ * duplicate that comes along a little later doesn't redo the work either.
+ * @author Ken Fishkin
+ *
+ * @param <K> the key type
+ * @param <V> the result type. Null results are shared with waiting callers but not remembered.
+ */
+public class SingleFlight<K, V> {
+  private final Map<K, CompletableFuture<V>> inFlight = new ConcurrentHashMap<K, CompletableFuture<V>>();
+  private final Map<K, V> recent;
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong coalesced = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+
+  /**
+   * @param maxRecent how many completed results to remember
+   */
+  public SingleFlight(final int maxRecent) {
+    recent = new LinkedHashMap<K, V>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+        return size() > maxRecent;
+      }
+    };
+  }
+
+  /**
+   * Get the result for a key, doing the work only if no-one else is doing it or has just done it.
+   * @param key the key
+   * @param work how to compute the result
+   * @return the result
+   */
+  public V run(K key, Supplier<V> work) {
+    synchronized (recent) {
+      V done = recent.get(key);
+      if (done != null) {
+        hits.incrementAndGet();
+        return done;
+      }
+    }
+    CompletableFuture<V> mine = new CompletableFuture<V>();
+    CompletableFuture<V> theirs = inFlight.putIfAbsent(key, mine);
+    if (theirs != null) {
+      coalesced.incrementAndGet();
+      try {
+        return theirs.join();
+      } catch (CompletionException e) {
+        throw rethrow(e.getCause());
+      }
+    }
+    try {
+      V answer;
+      synchronized (recent) {
+        // someone may have finished this key between our first look and now.
+        answer = recent.get(key);
+      }
+      if (answer != null) {
+        hits.incrementAndGet();
+        mine.complete(answer);
+        return answer;
+      }
+      misses.incrementAndGet();
+      answer = work.get();
+      if (answer != null) {
+        synchronized (recent) {
+          recent.put(key, answer);
+        }
+      }
+      mine.complete(answer);
+      return answer;
+    } catch (RuntimeException | Error e) {
+      mine.completeExceptionally(e);
+      throw e;
+    } finally {
+      inFlight.remove(key, mine);
+    }
+  }
+
+  private static RuntimeException rethrow(Throwable t) {
+    if (t instanceof RuntimeException) {
+      return (RuntimeException) t;
+    }
+    if (t instanceof Error) {
+      throw (Error) t;
+    }
+    return new CompletionException(t);
+  }
+
+  /**
+   * @return how many calls were answered from a remembered result
+   */
+  public long getHits() {
+    return hits.get();
+  }
+
+  /**
+   * @return how many calls waited for another caller's in-flight work
+   */
+  public long getCoalesced() {
+    return coalesced.get();
+  }
+
+  /**
+   * @return how many calls actually did the work
+   */
+  public long getMisses() {
+    return misses.get();
+  }
+
+  @Override
+  public String toString() {
+    return String.format("%d done, %d remembered, %d coalesced", getMisses(), getHits(), getCoalesced());
+  }
+}
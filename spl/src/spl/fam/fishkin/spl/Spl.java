@@ -1,14 +1,25 @@
 package fam.fishkin.spl;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
 import java.util.Set;
 import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
 import java.util.Vector;
 
 import net.sourceforge.argparse4j.ArgumentParsers;
+import net.sourceforge.argparse4j.impl.Arguments;
 import net.sourceforge.argparse4j.inf.ArgumentParser;
 import net.sourceforge.argparse4j.inf.Namespace;
 
@@ -22,6 +33,17 @@ import net.sourceforge.argparse4j.inf.Namespace;
  */
 public class Spl {
   private static final int NUM_WINNERS = 2;
+  // a best match this close (or closer) on both title and author is taken as the item.
+  public static final int MIN_DISTANCE = 3;
+  // a best match further than this on title or author is no match at all.
+  public static final int MAX_DISTANCE = 8;
+  // with -adaptive, never back off to less than one request every 10 seconds.
+  private static final double MIN_RATE = 0.1;
+  private static final long DEFAULT_CACHE_TTL_HOURS = 7 * 24;
+  private static final long DEFAULT_CACHE_MEGABYTES = 256;
+  // how many books to read ahead of the one being checked, beyond one per parallel lookup.
+  private static final int LOOK_AHEAD = 32;
+  private static final int DEFAULT_PROGRESS_SECONDS = 10;
 
   /**
    * Picks a subset of media items that are in the best format.
@@ -45,12 +67,36 @@ public class Spl {
     int skip = 0;
     //ArgumentParser parser = ArgumentParsers.newFor("spl").build().description("spl looker-upper");
     ArgumentParser parser = ArgumentParsers.newArgumentParser("spl");
-    parser.addArgument("-f", "-file", "--f", "--file").help("path to the input file");
-    parser.addArgument("-skip").help("skip <x> input records");
+    parser.addArgument("-f", "-file", "--f", "--file").help("path to the input file. With several domains,"
+        + " one file for them all, or one per domain, e.g. 'books.tdf,movies.csv'");
+    parser.addArgument("-skip").help("skip <x> input records (for debugging; an interrupted run resumes by itself)");
+    parser.addArgument("-nojournal").action(Arguments.storeTrue())
+        .help("don't keep a journal to resume from if the run is interrupted");
     parser.addArgument("-from").help("FROM email address");
     parser.addArgument("-to").help("TO email address");
     parser.addArgument("-apikey").help("Sendgrid API key");
-    parser.addArgument("-domain").help("domain: either 'spl' (default) or or 'splrss' or 'netflix'").setDefault("spl");
+    parser.addArgument("-domain").help("domain: 'spl' (default), 'splrss', 'netflix', or any other installed."
+        + " Give several, e.g. 'spl,netflix', to check them all in one run").setDefault("spl");
+    parser.addArgument("-library").help("with -domain spl or splrss, the bibliocommons library to search, as in its URLs"
+        + " (default 'seattle'). Give several, e.g. 'seattle,kcls,sno-isle', to search them all at once");
+    parser.addArgument("-batch").help("with -domain splrss, look up to this many books with each query (default 1)");
+    parser.addArgument("-catalog").help("with -domain netflix, where to keep the catalog snapshot");
+    parser.addArgument("-catalogage").help("with -domain netflix, hours before the catalog is scraped again (default 24)");
+    parser.addArgument("-parallel").help("how many lookups to run at once (default 1, i.e. one at a time)");
+    parser.addArgument("-rate").help("most requests per second to send to any one web site (default 0.5)");
+    parser.addArgument("-adaptive").action(Arguments.storeTrue())
+        .help("speed up while the web site answers quickly, slow down when it struggles");
+    parser.addArgument("-maxrate").help("with -adaptive, the most requests per second to send to a web site (default 2)");
+    parser.addArgument("-burst").help("how many requests may go to a web site back-to-back (default 1)");
+    parser.addArgument("-connecttimeout").help("seconds to wait when connecting to a web site (default 10)");
+    parser.addArgument("-readtimeout").help("seconds to wait for a web site to answer (default 30)");
+    parser.addArgument("-cachedir").help("directory to cache web pages in (default: no cache)");
+    parser.addArgument("-cachettl").help("hours to use a cached page before checking it again (default 168)");
+    parser.addArgument("-cachesize").help("most megabytes the cache may use (default 256)");
+    parser.addArgument("-metricsport").help("serve run metrics for Prometheus on http://localhost:<port>/metrics");
+    parser.addArgument("-verbosity").help("how much to say: 'quiet', 'normal' (default), 'verbose' (a line or two per item) or 'debug'");
+    parser.addArgument("-progress").help("seconds between progress lines (default 10, 0 for none)");
+    parser.addArgument("-jfr").help("record a flight recording of each search, parse and match to this file");
     Namespace nameSpace = parser.parseArgsOrFail(args);
     String f = nameSpace.getString("f");
     // 'skip' is useful when debugging, to get right to a problematic input record.
@@ -58,110 +104,428 @@ public class Spl {
     if (temp != null && !temp.isBlank()) {
       skip = Integer.parseInt(temp);
     }
-    String domainName = nameSpace.getString("domain");
-    MediaDomain domain = null;
-    if (domainName.equalsIgnoreCase("spl")) {
-      domain = new SplDomain();
-    } else if (domainName.equalsIgnoreCase("netflix")) {
-      domain = new NetflixDomain();
-    } else if (domainName.equalsIgnoreCase("splrss")) {
-    	domain = new SplRssDomain();
-    } else {
-      System.err.printf("unknown domain: %s. Must be 'spl' or 'netflix'", domainName);
-      System.exit(1);;
+    int parallel = 1;
+    temp = nameSpace.getString("parallel");
+    if (temp != null && !temp.isBlank()) {
+      parallel = Integer.parseInt(temp);
+    }
+    double rate = TokenBucket.DEFAULT_RATE;
+    temp = nameSpace.getString("rate");
+    if (temp != null && !temp.isBlank()) {
+      rate = Double.parseDouble(temp);
+    }
+    int burst = TokenBucket.DEFAULT_BURST;
+    temp = nameSpace.getString("burst");
+    if (temp != null && !temp.isBlank()) {
+      burst = Integer.parseInt(temp);
+    }
+    TokenBucket.configure(rate, burst);
+    double maxRate = AdaptiveLimiter.DEFAULT_MAX_RATE;
+    temp = nameSpace.getString("maxrate");
+    if (temp != null && !temp.isBlank()) {
+      maxRate = Double.parseDouble(temp);
+    }
+    boolean adaptive = nameSpace.getBoolean("adaptive");
+    AdaptiveLimiter.configure(adaptive, MIN_RATE, maxRate, parallel);
+    int connectTimeout = HttpTransport.DEFAULT_CONNECT_TIMEOUT_SECONDS;
+    temp = nameSpace.getString("connecttimeout");
+    if (temp != null && !temp.isBlank()) {
+      connectTimeout = Integer.parseInt(temp);
+    }
+    int readTimeout = HttpTransport.DEFAULT_READ_TIMEOUT_SECONDS;
+    temp = nameSpace.getString("readtimeout");
+    if (temp != null && !temp.isBlank()) {
+      readTimeout = Integer.parseInt(temp);
+    }
+    HttpTransport.configure(connectTimeout, readTimeout);
+    String cacheDir = nameSpace.getString("cachedir");
+    if (cacheDir != null && !cacheDir.isBlank()) {
+      long ttlHours = DEFAULT_CACHE_TTL_HOURS;
+      temp = nameSpace.getString("cachettl");
+      if (temp != null && !temp.isBlank()) {
+        ttlHours = Long.parseLong(temp);
+      }
+      long cacheMegabytes = DEFAULT_CACHE_MEGABYTES;
+      temp = nameSpace.getString("cachesize");
+      if (temp != null && !temp.isBlank()) {
+        cacheMegabytes = Long.parseLong(temp);
+      }
+      try {
+        WebHelper.setCache(new HttpDiskCache(new File(cacheDir), TimeUnit.HOURS.toMillis(ttlHours),
+            cacheMegabytes * 1024 * 1024));
+      } catch (IOException e) {
+        Log.error("could not open cache directory %s, running without a cache: %s\n", cacheDir, e);
+      }
+    }
+    temp = nameSpace.getString("verbosity");
+    if (temp != null && !temp.isBlank()) {
+      try {
+        Log.setLevel(Log.Level.valueOf(temp.strip().toUpperCase()));
+      } catch (IllegalArgumentException e) {
+        Log.error("unknown verbosity: %s. Must be 'quiet', 'normal', 'verbose' or 'debug'\n", temp);
+        System.exit(1);
+      }
+    }
+    int progressSeconds = DEFAULT_PROGRESS_SECONDS;
+    temp = nameSpace.getString("progress");
+    if (temp != null && !temp.isBlank()) {
+      progressSeconds = Integer.parseInt(temp);
+    }
+    String jfrFile = nameSpace.getString("jfr");
+    if (jfrFile != null && !jfrFile.isBlank()) {
+      Events.record(Paths.get(jfrFile));
+    }
+    // the metrics are always there over JMX; serving them over HTTP has to be asked for.
+    Metrics.registerMBeans();
+    temp = nameSpace.getString("metricsport");
+    if (temp != null && !temp.isBlank()) {
+      try {
+        Metrics.serve(Integer.parseInt(temp));
+      } catch (IOException e) {
+        Log.error("could not serve metrics on port %s, running without: %s\n", temp, e);
+      }
+    }
+    // -domain and -f can each name several, e.g. '-domain spl,netflix -f books.tdf,movies.csv'
+    // checks each list with its own domain, both at once. Domains given one file between them
+    // all check it together, so it's still only read and written once.
+    String[] domainNames = nameSpace.getString("domain").split(",");
+    String[] fileNames = (f == null) ? new String[] { null } : f.split(",");
+    if (fileNames.length != 1 && fileNames.length != domainNames.length) {
+      Log.error("%d domains but %d files: give one file for them all, or one per domain\n",
+          domainNames.length, fileNames.length);
+      System.exit(1);
+    }
+    Map<String, List<MediaDomain>> byFile = new LinkedHashMap<String, List<MediaDomain>>();
+    for (int i = 0; i < domainNames.length; i++) {
+      MediaDomain domain = MediaDomains.create(domainNames[i], nameSpace::getString);
+      if (domain == null) {
+        System.exit(1);
+      }
+      String fileName = (fileNames.length == 1) ? fileNames[0] : fileNames[i].strip();
+      byFile.computeIfAbsent(fileName, k -> new ArrayList<MediaDomain>()).add(domain);
+    }
+    // get the slow setup (e.g. the Netflix catalog) going while the other domains start looking things up.
+    for (List<MediaDomain> domains : byFile.values()) {
+      for (MediaDomain domain : domains) {
+        Thread warmUp = new Thread(domain::warmUp, "warm up " + domain.getName());
+        warmUp.setDaemon(true);
+        warmUp.start();
+      }
     }
 
-    // read in all the books at once so we can close the input file.
-    Iterable<MediaItem> bookList = domain.readFile(f);
-    if (bookList == null) {
+    Vector<String> messages = new Vector<String>();
+    List<MediaItem> winners = new ArrayList<MediaItem>();
+    AtomicInteger numEligible = new AtomicInteger();
+    List<Pass> passes = new ArrayList<Pass>();
+    for (Map.Entry<String, List<MediaDomain>> entry : byFile.entrySet()) {
+      List<MediaDomain> domains = entry.getValue();
+      MediaDomain domain = (domains.size() == 1) ? domains.get(0) : new CombinedDomain(domains);
+      Pass pass = new Pass(domain, entry.getKey(), skip, parallel, !nameSpace.getBoolean("nojournal"),
+          messages, winners, numEligible, passes);
+      if (pass.open()) {
+        passes.add(pass);
+      } else if (domain instanceof CombinedDomain) {
+        ((CombinedDomain) domain).close();
+      }
+    }
+    if (passes.isEmpty()) {
       System.exit(0);
     }
+    for (Pass pass : passes) {
+      pass.setSeveral(passes.size() > 1);
+    }
+    Log.startProgress(progressSeconds);
+    if (passes.size() == 1) {
+      passes.get(0).run();
+    } else {
+      // each list is checked on its own thread, so a slow domain doesn't hold the others up.
+      List<Thread> threads = new ArrayList<Thread>();
+      for (Pass pass : passes) {
+        Thread thread = new Thread(pass, "check " + pass.fileName);
+        thread.start();
+        threads.add(thread);
+      }
+      for (Thread thread : threads) {
+        try {
+          thread.join();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          break;
+        }
+      }
+    }
+    Log.startProgress(0);
+    for (Pass pass : passes) {
+      if (pass.domain instanceof CombinedDomain) {
+        ((CombinedDomain) pass.domain).close();
+      }
+    }
 
-    int numIn = 0;
     int numChecked = 0;
-    int numUpgrades = 0;
-    Map<MediaItem, BestMatch> upgrades = new TreeMap<MediaItem, BestMatch>();
-    Vector<String> messages = new Vector<String>();
+    Map<MediaItem, BestMatch> upgrades = new LinkedHashMap<MediaItem, BestMatch>();
+    for (Pass pass : passes) {
+      if (passes.size() > 1) {
+        Log.info("Done with %s (%s): %d items read, %d checked, %d upgrades\n", pass.fileName,
+            pass.domain.getName(), pass.numIn, pass.numChecked, pass.numUpgrades);
+      } else {
+        Log.info("Done: %d books read, %d checked, %d upgrades\n", pass.numIn, pass.numChecked,
+            pass.numUpgrades);
+      }
+      if (pass.bytesWritten >= 0) {
+        Log.info("Update: %d bytes written\n", pass.bytesWritten);
+      }
+      numChecked += pass.numChecked;
+      upgrades.putAll(pass.upgrades);
+    }
+    Log.info("Connections (estimated): %d opened, %d reused\n", HttpTransport.getEstimatedConnectionsOpened(),
+        HttpTransport.getEstimatedConnectionsReused());
+    for (AdaptiveLimiter limiter : AdaptiveLimiter.all()) {
+      Log.info("Limiter %s\n", limiter);
+    }
+    SingleFlight<String, Candidates> searches = SplDomain.getSearches();
+    if (searches.getHits() + searches.getCoalesced() + searches.getMisses() > 0) {
+      Log.info("Searches: %s\n", searches);
+    }
+    Log.info("Distances: %s\n", Distance.filterStats());
+    HttpDiskCache cache = WebHelper.getCache();
+    if (cache != null) {
+      Log.info("Cache: %d fresh hits, %d revalidated, %d misses\n", cache.getFreshHits(),
+          cache.getRevalidated(), cache.getMisses());
+    }
+    Log.info("Timings: %s\n", Metrics.summary());
+    Log.info("Here are %d ebooks from the list:\n", NUM_WINNERS);
+    for (MediaItem book : winners) {
+      Log.info("%s\n", book);
+    }
+    // anything printed from here on comes after the summary.
+    Log.flush();
+    String fromEmail = nameSpace.getString("from");
+    String toEmail = nameSpace.getString("to");
+    String apiKey = nameSpace.getString("apikey");
+    if (fromEmail != null && !fromEmail.isBlank() && toEmail != null && !toEmail.isBlank()
+        && apiKey != null && !apiKey.isBlank()) {
+      Mailer.sendMail(fromEmail, toEmail, numChecked, messages, upgrades, winners, apiKey);
+    }
+    Metrics.stop();
+    Events.stop();
+    Log.flush();
+  }
+
+  /**
+   * One read of a list, checking each item with its domain and writing it back out as it goes.
+   * The messages and winners are shared with any other passes running at the same time.
+   */
+  static class Pass implements Runnable {
+    private static final int REPORT_EVERY = 4;
+    final MediaDomain domain;
+    final String fileName;
+    private final int skip;
+    private final int parallel;
+    private final boolean useJournal;
+    private final Vector<String> messages;
+    private final List<MediaItem> winners;
+    private final AtomicInteger numEligible;
+    private final List<Pass> passes;
+    // with several passes, each line says which list it's about.
+    private String prefix = "";
+    private Stream<MediaItem> bookStream;
+    volatile int numIn = 0;
+    volatile int numChecked = 0;
+    volatile int numUpgrades = 0;
+    // how far through the file it is, -1 if that isn't known.
+    private volatile double fraction = -1;
+    long bytesWritten = -1;
+    final Map<MediaItem, BestMatch> upgrades = new TreeMap<MediaItem, BestMatch>();
+
+    Pass(MediaDomain domain, String fileName, int skip, int parallel, boolean useJournal, Vector<String> messages,
+        List<MediaItem> winners, AtomicInteger numEligible, List<Pass> passes) {
+      this.domain = domain;
+      this.fileName = fileName;
+      this.skip = skip;
+      this.parallel = parallel;
+      this.useJournal = useJournal;
+      this.messages = messages;
+      this.winners = winners;
+      this.numEligible = numEligible;
+      this.passes = passes;
+    }
+
+    /**
+     * @return true if the list could be read.
+     */
+    boolean open() {
+      // stream the books in, so the lookups start with the first of them, and
+      // only the ones being worked on are held in memory.
+      bookStream = domain.streamFile(fileName);
+      return bookStream != null;
+    }
 
-    final int MIN_DISTANCE = 3;
-    final int MAX_DISTANCE = 8;
-    final int REPORT_EVERY = 4;
-    for (MediaItem mediaItem : bookList) {
-      numIn++;
-      if (skip > 0) {
-        skip--;
-        continue;
+    void setSeveral(boolean several) {
+      prefix = several ? fileName + " " : "";
+    }
+
+    @Override
+    public void run() {
+      LookupPipeline pipeline = new LookupPipeline(domain, parallel);
+      // keep a journal next to the input file, so if this run dies part way
+      // through, the next one picks up where it stopped.
+      RunJournal journal = null;
+      if (useJournal) {
+        try {
+          journal = new RunJournal(fileName);
+          pipeline.setJournal(journal);
+        } catch (IOException e) {
+          Log.error("could not open journal, running without one: %s\n", e);
+        }
       }
-      System.out.printf("%d: %s\n", numIn, mediaItem.toString());
+      // each book is written back out as soon as it's been checked.
+      MediaDomain.Update update = domain.startUpdate(fileName);
+      Calendar cal = Calendar.getInstance();
+      int year = cal.get(Calendar.YEAR);
+      // read a little ahead of the book being checked, so the lookups for the next few can get going.
+      int lookAhead = Math.max(1, parallel) + LOOK_AHEAD;
+      ArrayDeque<MediaItem> ahead = new ArrayDeque<MediaItem>();
+      Iterator<MediaItem> books = bookStream.iterator();
+      int numRead = 0;
+      // how far through the file we are, for the progress line, goes by where the books were in it.
+      // (a binary list doesn't keep byte offsets, so there it isn't known.)
+      long fileLength = new File(fileName).length();
+      for (;;) {
+        // let the domain know what's coming, so it can batch lookups if it knows how.
+        ArrayList<MediaItem> toCheck = new ArrayList<MediaItem>();
+        while (ahead.size() < lookAhead && books.hasNext()) {
+          MediaItem next = books.next();
+          if (journal != null) {
+            journal.add(next, numRead);
+          }
+          numRead++;
+          Metrics.ITEMS_READ.increment();
+          ahead.add(next);
+          if (numRead > skip && !next.isRead() && (journal == null || journal.replayed(next) == null)) {
+            toCheck.add(next);
+          }
+        }
+        if (!toCheck.isEmpty()) {
+          domain.willLookUp(toCheck);
+          pipeline.prefetch(toCheck, 0);
+        }
+        MediaItem mediaItem = ahead.poll();
+        if (mediaItem == null) {
+          break;
+        }
+        numIn++;
+        check(mediaItem, pipeline, year);
+        if (journal != null) {
+          journal.forget(mediaItem);
+        }
+        if (update != null) {
+          update.add(mediaItem);
+        }
+        if (mediaItem.isInDesiredFormat()) {
+          synchronized (winners) {
+            MediaItem.pick(winners, NUM_WINNERS, numEligible.incrementAndGet(), mediaItem);
+          }
+        }
+        Metrics.progress();
+        long offset = (mediaItem instanceof Book) ? ((Book) mediaItem).statusOffset : -1;
+        fraction = (offset >= 0 && fileLength > 0) ? (double) offset / fileLength : -1;
+        progress();
+      }
+      bookStream.close();
+      pipeline.close();
+      boolean written = false;
+      if (update != null) {
+        long start = System.nanoTime();
+        written = update.finish();
+        Metrics.UPDATE_FILE.record(System.nanoTime() - start);
+        if (update instanceof TdfUpdate) {
+          bytesWritten = ((TdfUpdate) update).getBytesWritten();
+        }
+      }
+      // the journal is the only other copy of the results: only let it go once they're in the file.
+      if (journal != null) {
+        if (written) {
+          journal.finish();
+        } else {
+          journal.keep();
+        }
+      }
+    }
+
+    private void check(MediaItem mediaItem, LookupPipeline pipeline, int year) {
+      if (numIn <= skip) {
+        return;
+      }
+      Log.verbose("%s%d: %s\n", prefix, numIn, mediaItem.toString());
       if (mediaItem.isRead()) {
-        continue;
+        return;
       }
       numChecked++;
-      Candidates candidates = domain.findWebCandidates(mediaItem);
+      Metrics.ITEMS_CHECKED.increment();
+      LookupPipeline.Result result = pipeline.get(mediaItem);
 
-      if (candidates == null) {
-        System.out.println("no elements");
-        continue;
+      if (result.noCandidates) {
+        Log.verbose("no elements\n");
+        return;
       }
-      BestMatch best = domain.findBestMatch(mediaItem, candidates);
+      BestMatch best = result.best;
       if (best == null) {
-        System.out.printf("line %d: no best match for %s\n", numIn, mediaItem.toString());
-        continue;
+        Log.verbose("%sline %d: no best match for %s\n", prefix, numIn, mediaItem.toString());
+        return;
       }
       if ((numIn % REPORT_EVERY) == 0) {
-        System.out.printf("\t%s\n", best.toString());
+        Log.verbose("\t%s\n", best.toString());
       }
       if (best.titleDistance > MAX_DISTANCE || best.authorDistance > MAX_DISTANCE) {
         // if the book was UNKNOWN, upgrade to NO.
         if (mediaItem.isNew()) {
           numUpgrades++;
+          Metrics.UPGRADES.increment();
           best.bestFormat = Format.NO;
           upgrades.put(mediaItem, best);
+          mediaItem.upgrade(best.bestFormat, year);
         }
-        continue;
+        return;
       }
       if (best.titleDistance > MIN_DISTANCE) {
         String msg = String.format("best title found, [%s], too far away (%d) on [%s]",
             best.bestTitle, best.titleDistance, mediaItem.toString());
-        System.err.printf("line %d: %s.\n", numIn, msg);
+        Log.error("%sline %d: %s.\n", prefix, numIn, msg);
         messages.add(msg);
-        continue;
+        return;
       }
       if (best.authorDistance > MIN_DISTANCE) {
         String msg = String.format("best author found, [%s], too far away (%d) on [%s]",
             best.bestAuthor, best.authorDistance, mediaItem.toString());
-        System.err.printf("line %d: %s.\n", numIn, msg);
+        Log.error("%sline %d: %s.\n", prefix, numIn, msg);
         messages.add(msg);
-        continue;
+        return;
       }
       if (mediaItem.wouldBeAnUpgrade(best.bestFormat)) {
-        System.out.printf("line %d: UPGRADE of %s to %s\n", numIn, mediaItem.toString(),
-            best.bestFormat.toString());
+        // when searching several libraries (or domains), say which one has it.
+        String where = ((domain instanceof FederatedDomain || domain instanceof CombinedDomain) && best.library != null) ? " at " + best.library : "";
+        Log.info("%sline %d: UPGRADE of %s to %s%s\n", prefix, numIn, mediaItem.toString(),
+            best.bestFormat.toString(), where);
         numUpgrades++;
+        Metrics.UPGRADES.increment();
         upgrades.put(mediaItem, best);
+        mediaItem.upgrade(best.bestFormat, year);
       }
     }
-    System.out.printf("Done: %d books read, %d checked, %d upgrades\n", numIn, numChecked,
-        numUpgrades);
-    Calendar cal = Calendar.getInstance();
-    int year = cal.get(Calendar.YEAR);
-    for (Entry<MediaItem, BestMatch> entry : upgrades.entrySet()) {
-      MediaItem book = entry.getKey();
-      BestMatch match = entry.getValue();
-      book.upgrade(match.bestFormat, year);
-    }
-    domain.updateFile(bookList, f);
-    Iterable<MediaItem> winners = pickK(bookList, 2);
-    System.out.printf("Here are %d ebooks from the list:\n", NUM_WINNERS);
-    for (MediaItem book : winners) {
-      System.out.println(book);
-    }
-    String fromEmail = nameSpace.getString("from");
-    String toEmail = nameSpace.getString("to");
-    String apiKey = nameSpace.getString("apikey");
-    if (fromEmail != null && !fromEmail.isBlank() && toEmail != null && !toEmail.isBlank()
-        && apiKey != null && !apiKey.isBlank()) {
-      Mailer.sendMail(fromEmail, toEmail, numChecked, messages, upgrades, winners, apiKey);
+
+    // the progress line is for the whole run: the totals of every pass, and as far along as the furthest behind.
+    private void progress() {
+      long read = 0, checked = 0, upgraded = 0;
+      double least = -1;
+      for (Pass pass : passes) {
+        read += pass.numIn;
+        checked += pass.numChecked;
+        upgraded += pass.numUpgrades;
+        if (pass.fraction >= 0 && (least < 0 || pass.fraction < least)) {
+          least = pass.fraction;
+        }
+      }
+      Log.progress(read, checked, upgraded, least);
     }
   }
 
@@ -1,131 +1,214 @@
 package fam.fishkin.spl;
 
-import java.io.BufferedReader;
 import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
+import java.nio.charset.Charset;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
-import java.util.ArrayList;
 import java.util.Calendar;
-import org.jsoup.nodes.Element;
-import org.jsoup.select.Elements;
+import java.util.List;
+import java.util.stream.Stream;
 
 public class SplDomain implements MediaDomain {
   final static  String COMMENT = "#";
+  // how many recent search results to remember for duplicate titles.
+  private static final int RECENT_SEARCHES = 64;
+  // the "status as of" line is padded to this, which is room for any date in English
+  // (the longest, e.g. "# status as of Wed, September 30 2026", is 37).
+  private static final int STATUS_LINE_WIDTH = 48;
+  // shared by every SPL domain, so the same search (e.g. different editions of a title,
+  // or the same title in several lists) goes to the web site once.
+  static final SingleFlight<String, Candidates> searches = new SingleFlight<String, Candidates>(RECENT_SEARCHES);
+  // which bibliocommons library to search, as it appears in its URLs, e.g. "seattle" or "kcls".
+  protected final String library;
+
+  public SplDomain() {
+    this(WebHelper.DEFAULT_LIBRARY);
+  }
+
+  /**
+   * @param library which bibliocommons library to search, as it appears in its URLs, e.g. "kcls"
+   */
+  public SplDomain(String library) {
+    this.library = library;
+  }
+
+  public String getLibrary() {
+    return library;
+  }
 
   @Override
   public String getName() {
-    return "SPL Library";
+    return library.equals(WebHelper.DEFAULT_LIBRARY) ? "SPL Library" : library + " library";
   }
 
   @Override
   public Iterable<MediaItem> readFile(String fileName) {
-    ArrayList<MediaItem> bookList = new ArrayList<MediaItem>();
-    final String splitOn = "\t";
-    try {
-      BufferedReader br = new BufferedReader(new FileReader(fileName));
-      for (;;) {
-        String line;
-        try {
-          line = br.readLine();
-        } catch (IOException e) {
-          break;
-        }
-        if (line == null) {
-          break;
-        }
-        if (line.startsWith(COMMENT)) {
-          continue;
-        }
-        // each line is <author><title>[<recommender>]<status>,
-        // separated by tabs. Could use a CSV reader here, but it's so straightforwards, just do it
-        // by hand.
-        String[] args = line.split(splitOn);
-        int len = args.length;
-        if (len < 3) {
-          System.err.printf("only %d fields in line '%s' - need at least 3\n", len, line);
-          continue;
-        } else if (len > 4) {
-          System.err.printf("%d fields in line '%s' - need at most 4\n", len, line);
-          continue;
-        }
-        String author = args[0];
-        String title = args[1];
-        String recommender = args[2];
-        String status = "??";
-        if (len >= 4) {
-          status = args[3];
-        } else {
-          status = recommender;
-          recommender = "";
-        }
-        Format format = Format.fromFile(status);
-        Book book = new Book(author, title, recommender, format);
-        book.rawFormat = status;
-        bookList.add(book);
+    if (BinaryWatchlist.isBinary(fileName)) {
+      return BinaryWatchlist.load(fileName);
+    }
+    // each line is <author><title>[<recommender>]<status>, separated by tabs.
+    return TdfLoader.load(fileName);
+  }
+
+  @Override
+  public Stream<MediaItem> streamFile(String fileName) {
+    if (BinaryWatchlist.isBinary(fileName)) {
+      List<MediaItem> books = BinaryWatchlist.load(fileName);
+      return (books == null) ? null : books.stream();
+    }
+    return TdfLoader.stream(fileName);
+  }
+
+  @Override
+  public boolean updateFile(Iterable<MediaItem> newList, String fileName) {
+    if (BinaryWatchlist.isBinary(fileName)) {
+      Events.UpdateFile event = new Events.UpdateFile();
+      event.begin();
+      // lay it out as TDF, then encode that.
+      ByteArrayOutputStream tdf = new ByteArrayOutputStream();
+      PrintWriter out = new PrintWriter(new OutputStreamWriter(tdf, Charset.defaultCharset()));
+      out.printf("%s\n", statusLine());
+      for (MediaItem mediaItem : newList) {
+        writeBook(out, mediaItem);
       }
-      return bookList;
-    } catch (FileNotFoundException e) {
-      System.err.printf("could not read input file %s\n", fileName);
-      return null;
+      out.close();
+      try {
+        BinaryWatchlist.fromTdf(tdf.toByteArray(), Charset.defaultCharset()).write(new File(fileName).toPath());
+        event.record(fileName, -1, new File(fileName).length());
+        return true;
+      } catch (IOException e) {
+        Log.error("could not write %s: %s\n", fileName, e);
+        return false;
+      }
+    }
+    Update update = startRewrite(fileName);
+    if (update == null) {
+      return false;
+    }
+    for (MediaItem mediaItem : newList) {
+      update.add(mediaItem);
     }
+    return update.finish();
   }
 
+  /**
+   * Only the statuses that changed are written, in place if they fit.
+   * If the books weren't read with their offsets, the whole file is written instead, as by updateFile.
+   */
   @Override
-  public void updateFile(Iterable<MediaItem> newList, String fileName) {
+  public Update startUpdate(String fileName) {
     File destFile = new File(fileName);
     if (!destFile.canWrite()) {
-      System.err.printf("cannot write destination file %s\n", fileName);
-      return;
+      Log.error("cannot write destination file %s\n", fileName);
+      return null;
+    }
+    if (BinaryWatchlist.isBinary(fileName)) {
+      return new BinaryWatchlist.Update(destFile, statusLine());
+    }
+    if (!TdfLoader.knowsOffsets()) {
+      return startRewrite(fileName);
+    }
+    return new TdfUpdate(destFile, statusLine());
+  }
+
+  // padded to a fixed width, so a later run's date can be written over it in place.
+  private static String statusLine() {
+    DateFormat dateFormat = new SimpleDateFormat("EE, MMMM d yyyy");
+    Calendar cal = Calendar.getInstance();
+    return String.format("%-" + STATUS_LINE_WIDTH + "s",
+        String.format("%s status as of %s", COMMENT, dateFormat.format(cal.getTime())));
+  }
+
+  // write every book out again.
+  private Update startRewrite(String fileName) {
+    File destFile = new File(fileName);
+    if (!destFile.canWrite()) {
+      Log.error("cannot write destination file %s\n", fileName);
+      return null;
     }    
     // to protect against a crash in mid-write, write to a temp file,
-    // then rename that temp file.
+    // then rename that temp file. It's in the same directory, so the rename
+    // is a rename, not a copy, and replaces the old file in one step.
     File tempFile;
     PrintWriter out;
     try {
-      tempFile = File.createTempFile("temp", null);
-      System.out.println(tempFile.getAbsolutePath());
+      tempFile = File.createTempFile("temp", null, destFile.getAbsoluteFile().getParentFile());
+      copyPermissions(destFile.toPath(), tempFile.toPath());
+      Log.debug("%s\n", tempFile.getAbsolutePath());
     } catch (IOException e) {
-      System.err.println("could not create temp file:" + e);
-      return;
+      Log.error("could not create temp file: %s\n", e);
+      return null;
     }
     try {
       out = new PrintWriter(new BufferedWriter(new FileWriter(tempFile)));
     } catch (IOException e) {
-      System.err.println("Could not create PrintWriter:" + e);
-      return;
+      Log.error("Could not create PrintWriter: %s\n", e);
+      return null;
     }
-    DateFormat dateFormat = new SimpleDateFormat("EE, MMMM d yyyy");
-    Calendar cal = Calendar.getInstance();
-    out.printf("%s status as of %s\n", COMMENT, dateFormat.format(cal.getTime()));
+    out.printf("%s\n", statusLine());
 
-    for (MediaItem mediaItem : newList) {
-      if (!(mediaItem instanceof Book)) {
-        continue;
+    return new Update() {
+      @Override
+      public void add(MediaItem mediaItem) {
+        writeBook(out, mediaItem);
       }
-      Book book = (Book) mediaItem;
-      out.printf("%s\t%s", book.author, book.title);
-      if (book.recommender != null && !book.recommender.isEmpty()) {
-        out.printf("\t%s", book.recommender);
+
+      @Override
+      public boolean finish() {
+        Events.UpdateFile event = new Events.UpdateFile();
+        event.begin();
+        out.close();
+        if (out.checkError()) {
+          Log.error("could not write %s, leaving %s as it was\n", tempFile, destFile);
+          tempFile.delete();
+          return false;
+        }
+        try {
+          try {
+            Files.move(tempFile.toPath(), destFile.toPath(), StandardCopyOption.ATOMIC_MOVE,
+                StandardCopyOption.REPLACE_EXISTING);
+          } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tempFile.toPath(), destFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+          }
+          event.record(fileName, -1, destFile.length());
+          return true;
+        } catch (IOException | SecurityException e) {
+          Log.error("couldn't rename output file: %s\n", e);
+          return false;
+        }
       }
-      out.printf("\t%s\n", book.rawFormat);
+    };
+  }
+
+  private static void writeBook(PrintWriter out, MediaItem mediaItem) {
+    if (!(mediaItem instanceof Book)) {
+      return;
     }
-    out.close();
+    Book book = (Book) mediaItem;
+    out.printf("%s\t%s", book.author, book.title);
+    if (book.recommender != null && !book.recommender.isEmpty()) {
+      out.printf("\t%s", book.recommender);
+    }
+    out.printf("\t%s\n", book.rawFormat);
+  }
+
+  // a new file standing in for an old one should have the same permissions, where there are such things.
+  static void copyPermissions(Path from, Path to) {
     try {
-      if (!destFile.delete()) {
-        System.err.println("could not delete destination file " + destFile);
-        return;
-      }
-      tempFile.renameTo(destFile);
-    } catch (SecurityException e) {
-      System.err.printf("couldn't rename output file: %s\n", e);
+      Files.setPosixFilePermissions(to, Files.getPosixFilePermissions(from));
+    } catch (UnsupportedOperationException | IOException e) {
+      // not a POSIX file system, or not allowed: go with the defaults.
     }
-    
   }
 
   @Override
@@ -133,7 +216,19 @@ public class SplDomain implements MediaDomain {
     if (!(item instanceof Book)) {
       return null;
     }
-    return new Candidates(WebHelper.findCandidates((Book) item));
+    Book book = (Book) item;
+    Candidates candidates = searches.run(WebHelper.queryKey("html", library, book), () -> {
+      List<CandidateRecord> found = WebHelper.findCandidates(library, book);
+      return (found == null) ? null : new Candidates(found);
+    });
+    return (candidates == null) ? new Candidates(null) : candidates;
+  }
+
+  /**
+   * @return the searches shared by all the SPL domains, e.g. to see how many were coalesced.
+   */
+  public static SingleFlight<String, Candidates> getSearches() {
+    return searches;
   }
 
   @Override
@@ -141,46 +236,9 @@ public class SplDomain implements MediaDomain {
     if (desired == null || candidates == null) {
       return null;
     }
-    Elements elts = candidates.asElements();
-    if (elts == null || elts.isEmpty()) {
-    	return null;
-    }
-    BestMatch best = new BestMatch(desired, null, Integer.MAX_VALUE, null, Integer.MAX_VALUE, Format.NO);
-    // strip off everything after a ":" in the title - subheadings are in a different place on the web page,
-    // and can vary too much.
-    String title = desired.getTitle();
-    int idx = title.indexOf(':');
-    String compareTitle = (idx == -1) ? title : title.substring(0, idx);
-    compareTitle = compareTitle.trim().toLowerCase();
-    String compareAuthor = desired.getAuthor().trim().toLowerCase();
-    
-    for (Element result: elts) {
-      BestMatch bestThisItem = new BestMatch(desired, null, Integer.MAX_VALUE, null, Integer.MAX_VALUE, Format.UNKNOWN);
-      Element titleElt = result.selectFirst("h2.cp-title span.title-content");
-      int dist = Distance.LevenshteinDistance(compareTitle, titleElt.text().trim().toLowerCase());
-      if (dist < best.titleDistance) {
-        bestThisItem.titleDistance = dist;
-        bestThisItem.bestTitle = titleElt.text().trim();
-      }
-      Elements authorElts = result.select("span.cp-author-link");
-      for (Element authorElt: authorElts) {
-        dist = Distance.LevenshteinDistance(compareAuthor, authorElt.text().trim().toLowerCase());
-        if (dist < best.authorDistance) {
-          bestThisItem.authorDistance = dist;
-          bestThisItem.bestAuthor = authorElt.text().trim();
-        }
-      }
-      Elements formatElts = result.select("span.cp-format-indicator");
-      for (Element formatElt : formatElts) {
-        Format format = Format.fromWeb(formatElt.text());
-        if (format.value > best.bestFormat.value) {
-          bestThisItem.bestFormat = format;
-        }
-      }
-      if (bestThisItem.titleDistance <= best.titleDistance
-          && bestThisItem.authorDistance <= best.authorDistance) {
-        best = bestThisItem;
-      }
+    BestMatch best = BestMatch.bestOnWeb(desired, candidates.asRecords());
+    if (best != null) {
+      best.library = library;
     }
     return best;
   }
@@ -1,11 +1,10 @@
 package fam.fishkin.spl;
 
-import java.util.Vector;
-
-import org.jsoup.nodes.Element;
-import org.jsoup.select.Elements;
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
 
 /**
  * The SPL domain, but where we read the results in RSS, not display HTML
@@ -13,70 +12,130 @@ import org.w3c.dom.NodeList;
  *
  */
 public class SplRssDomain extends SplDomain {
+	// the most items the gateway sends back for one query. A batch that fills a whole page
+	// may have lost some of its results, so it gets split up and asked again.
+	static final int PAGE_LIMIT = 20;
 
-	  @Override
-	  public Candidates findWebCandidates(MediaItem item) {
-	    if (!(item instanceof Book)) {
-	      return null;
-	    }
-	    return new Candidates(WebHelper.findRSSCandidates((Book) item));
-	  }
-	  
-		private static String extractFieldValue(Node node, String tagName) {
-	          org.w3c.dom.Element eElement = (org.w3c.dom.Element) node;
-			if (eElement == null) return null;
-			NodeList nodeList =  eElement.getElementsByTagName(tagName);
-			if (nodeList == null || nodeList.getLength() < 1) return null;
-			Node first = nodeList.item(0);
-			if (first == null) return null;
-			String val = first.getTextContent();
-			return val == null ? val : val.trim();
-		
+	/**
+	 * Some books that are searched for with one query. The results are shared:
+	 * findBestMatch sorts out which of them go with which book.
+	 */
+	private class Batch {
+		final List<Book> books;
+		Map<Book, Candidates> candidates = null;
+
+		Batch(List<Book> books) {
+			this.books = books;
 		}
 
+		synchronized Candidates candidatesFor(Book book) {
+			if (candidates == null) {
+				candidates = new IdentityHashMap<Book, Candidates>();
+				fetch(books, candidates);
+			}
+			return candidates.get(book);
+		}
+	}
+
+	private int maxBatchSize = 1;
+	private int batchSize = 1;
+	private final ArrayDeque<Book> upcoming = new ArrayDeque<Book>();
+	private final Map<Book, Batch> batches = new IdentityHashMap<Book, Batch>();
+
+	public SplRssDomain() {
+		super();
+	}
+
+	/**
+	 * @param library which bibliocommons library to search, as it appears in its URLs, e.g. "kcls"
+	 */
+	public SplRssDomain(String library) {
+		super(library);
+	}
+
+	/**
+	 * Look up to (max) books with one query. The number actually used adapts to how many
+	 * results come back: it shrinks when a query fills a whole page of results, and grows
+	 * back while there's room to spare.
+	 * @param max the most books per query. 1 turns batching off.
+	 */
+	public void setMaxBatchSize(int max) {
+		maxBatchSize = Math.max(1, max);
+		batchSize = maxBatchSize;
+	}
+
+	@Override
+	public synchronized void willLookUp(List<MediaItem> items) {
+		for (MediaItem item : items) {
+			if (item instanceof Book) {
+				upcoming.add((Book) item);
+			}
+		}
+	}
+
+	// find the batch a book is in, starting a new one (with the book and the ones after it) if need be.
+	private synchronized Batch batchFor(Book book) {
+		Batch batch = batches.get(book);
+		if (batch != null) {
+			return batch;
+		}
+		if (!upcoming.remove(book)) {
+			return null;
+		}
+		List<Book> books = new ArrayList<Book>();
+		books.add(book);
+		while (books.size() < batchSize && !upcoming.isEmpty()) {
+			books.add(upcoming.poll());
+		}
+		batch = new Batch(books);
+		for (Book member : books) {
+			batches.put(member, batch);
+		}
+		return batch;
+	}
+
+	// fetch the results for some books with one query, splitting it up if the results were cut off.
+	private void fetch(List<Book> books, Map<Book, Candidates> answers) {
+		List<CandidateRecord> found = WebHelper.findRSSCandidates(library, books);
+		if (found != null && found.size() >= PAGE_LIMIT && books.size() > 1) {
+			synchronized (this) {
+				batchSize = Math.max(1, Math.min(batchSize, books.size() / 2));
+			}
+			int half = books.size() / 2;
+			fetch(books.subList(0, half), answers);
+			fetch(books.subList(half, books.size()), answers);
+			return;
+		}
+		if (found != null && found.size() < PAGE_LIMIT / 2) {
+			synchronized (this) {
+				batchSize = Math.min(maxBatchSize, batchSize + 1);
+			}
+		}
+		Candidates shared = new Candidates(found);
+		for (Book book : books) {
+			answers.put(book, shared);
+		}
+	}
+
 	  @Override
-	  public BestMatch findBestMatch(MediaItem desired, Candidates candidates) {
-	    if (desired == null || candidates == null) {
+	  public Candidates findWebCandidates(MediaItem item) {
+	    if (!(item instanceof Book)) {
 	      return null;
 	    }
-	    Vector<Node> cands  = candidates.asNodeList();
-	    if (cands == null || cands.isEmpty()) {
-	    	return null;
-	    }
-	    BestMatch best = new BestMatch(desired, null, Integer.MAX_VALUE, null, Integer.MAX_VALUE, Format.NO);
-	    // strip off everything after a ":" in the title - subheadings are in a different place on the web page,
-	    // and can vary too much.
-	    String title = desired.getTitle();
-	    int idx = title.indexOf(':');
-	    String compareTitle = (idx == -1) ? title : title.substring(0, idx);
-	    compareTitle = compareTitle.trim().toLowerCase();
-	    String compareAuthor = desired.getAuthor().trim().toLowerCase();
-	    
-	    for (Node cand: cands) {
-	    	BestMatch bestThisItem = new BestMatch(desired, null, Integer.MAX_VALUE, null, Integer.MAX_VALUE, Format.UNKNOWN);
-	    	String val = extractFieldValue(cand, "title");
-	    	int dist = Distance.LevenshteinDistance(compareTitle, val);
-	    	if (dist < best.titleDistance) {
-	    		bestThisItem.titleDistance = dist;
-	    		bestThisItem.bestTitle = val;
-	    	}
-	    	val = extractFieldValue(cand, "dc:creator");
-	    	dist = Distance.LevenshteinDistance(compareAuthor, val);
-	    	if (dist < best.authorDistance) {
-	    		bestThisItem.authorDistance = dist;
-	    		bestThisItem.bestAuthor = val;
-	    	}
-
-	    	val = extractFieldValue(cand, "format");
-	    	Format format = Format.fromWeb(val);
-	    	if (format.value > best.bestFormat.value) {
-	    		bestThisItem.bestFormat = format;
-	    	}
-	    	if (bestThisItem.titleDistance <= best.titleDistance
-	    			&& bestThisItem.authorDistance <= best.authorDistance) {
-	    		best = bestThisItem;
+	    Book book = (Book) item;
+	    Batch batch = (maxBatchSize > 1) ? batchFor(book) : null;
+	    if (batch != null) {
+	    	Candidates candidates = batch.candidatesFor(book);
+	    	// each book is looked up once, so its batch can go once it has its answer.
+	    	synchronized (this) {
+	    		batches.remove(book);
 	    	}
+	    	return candidates;
 	    }
-	    return best;
-	  }	  
+	    Candidates candidates = searches.run(WebHelper.queryKey("rss", library, book), () -> {
+	    	List<CandidateRecord> found = WebHelper.findRSSCandidates(library, book);
+	    	return (found == null) ? null : new Candidates(found);
+	    });
+	    return (candidates == null) ? new Candidates(null) : candidates;
+	  }
 }
@@ -0,0 +1,381 @@
+package fam.fishkin.spl;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Reads a books (TDF) file: one book per line, as author, title, [recommender,] status, separated by tabs.
+ * The file is memory-mapped and cut into chunks at line ends, and the chunks are parsed in
+ * parallel, each field decoded straight from the mapped bytes. The books, and any complaints
+ * about bad lines, come out in file order, just as if it had been read a line at a time.
+ * @author Ken Fishkin
+ *
+ */
+public class TdfLoader {
+  // below this, a file isn't worth splitting up.
+  private static final int MIN_CHUNK_BYTES = 1 << 20;
+  // and no chunk is bigger than this, so each mapping stays small.
+  private static final int MAX_CHUNK_BYTES = 64 << 20;
+  // tabs and line ends can be found byte by byte only in charsets where ASCII is one byte.
+  private static final Set<Charset> BYTE_ORIENTED = Set.of(StandardCharsets.UTF_8, StandardCharsets.ISO_8859_1,
+      StandardCharsets.US_ASCII);
+
+  private static final byte TAB = '\t';
+  private static final byte CR = '\r';
+  private static final byte LF = '\n';
+
+  private TdfLoader() {
+  }
+
+  /**
+   * @return true if the books read know where their status is in the file, as byte offsets.
+   */
+  public static boolean knowsOffsets() {
+    return BYTE_ORIENTED.contains(Charset.defaultCharset());
+  }
+
+  // what one chunk of the file turned into.
+  private static class Chunk {
+    final List<MediaItem> books = new ArrayList<MediaItem>();
+    final StringBuilder errors = new StringBuilder();
+  }
+
+  /**
+   * Read a books file.
+   * @param fileName the file
+   * @return the books in it, in file order. null if the file can't be read.
+   */
+  public static List<MediaItem> load(String fileName) {
+    // decode the way FileReader does.
+    Charset charset = Charset.defaultCharset();
+    if (!BYTE_ORIENTED.contains(charset)) {
+      return readLines(fileName);
+    }
+    try (FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ)) {
+      long size = channel.size();
+      int workers = ForkJoinPool.getCommonPoolParallelism();
+      long target = Math.min(MAX_CHUNK_BYTES, Math.max(MIN_CHUNK_BYTES, size / (4L * workers)));
+      List<long[]> ranges = split(channel, size, target);
+      List<MediaItem> books = new ArrayList<MediaItem>();
+      if (ranges.size() == 1) {
+        Chunk chunk = parse(fileName, channel, ranges.get(0), charset);
+        Log.error("%s", chunk.errors);
+        books.addAll(chunk.books);
+        return books;
+      }
+      List<ForkJoinTask<Chunk>> tasks = new ArrayList<ForkJoinTask<Chunk>>();
+      for (long[] range : ranges) {
+        tasks.add(ForkJoinPool.commonPool().submit(() -> parse(fileName, channel, range, charset)));
+      }
+      for (ForkJoinTask<Chunk> task : tasks) {
+        Chunk chunk = task.join();
+        Log.error("%s", chunk.errors);
+        books.addAll(chunk.books);
+      }
+      return books;
+    } catch (IOException e) {
+      Log.error("could not read input file %s\n", fileName);
+      return null;
+    }
+  }
+
+  /**
+   * Read a books file a chunk at a time, as the stream gets to it. The chunk after the one being
+   * used is parsed in the background, so the books at the front of the file can be used straight
+   * away, and only a couple of chunks' worth are held at once, however long the file is.
+   * Complaints about bad lines come out as their chunk is reached. Close the stream when done with it.
+   * @param fileName the file
+   * @return the books in it, in file order. null if the file can't be read.
+   */
+  public static Stream<MediaItem> stream(String fileName) {
+    Charset charset = Charset.defaultCharset();
+    if (!BYTE_ORIENTED.contains(charset)) {
+      List<MediaItem> books = readLines(fileName);
+      return (books == null) ? null : books.stream();
+    }
+    FileChannel channel = null;
+    List<long[]> ranges;
+    try {
+      channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ);
+      ranges = split(channel, channel.size(), MIN_CHUNK_BYTES);
+    } catch (IOException e) {
+      close(channel);
+      Log.error("could not read input file %s\n", fileName);
+      return null;
+    }
+    ChunkIterator chunks = new ChunkIterator(fileName, channel, ranges, charset);
+    return StreamSupport.stream(Spliterators.spliteratorUnknownSize(chunks, Spliterator.ORDERED), false)
+        .flatMap(chunk -> {
+          Log.error("%s", chunk.errors);
+          return chunk.books.stream();
+        }).onClose(chunks::close);
+  }
+
+  // hands out the chunks in order, parsing one ahead.
+  private static class ChunkIterator implements Iterator<Chunk> {
+    private final String fileName;
+    private final FileChannel channel;
+    private final List<long[]> ranges;
+    private final Charset charset;
+    private int next = 0;
+    private ForkJoinTask<Chunk> ahead = null;
+
+    ChunkIterator(String fileName, FileChannel channel, List<long[]> ranges, Charset charset) {
+      this.fileName = fileName;
+      this.channel = channel;
+      this.ranges = ranges;
+      this.charset = charset;
+      ahead = start(next);
+    }
+
+    private ForkJoinTask<Chunk> start(int index) {
+      if (index >= ranges.size()) {
+        return null;
+      }
+      long[] range = ranges.get(index);
+      return ForkJoinPool.commonPool().submit(() -> parse(fileName, channel, range, charset));
+    }
+
+    @Override
+    public boolean hasNext() {
+      return ahead != null;
+    }
+
+    @Override
+    public Chunk next() {
+      if (ahead == null) {
+        throw new NoSuchElementException();
+      }
+      Chunk chunk;
+      try {
+        chunk = ahead.join();
+      } catch (RuntimeException e) {
+        // the file went away or shrank under us: stop here, as a line-at-a-time read would.
+        Log.error("could not read input file %s\n", fileName);
+        ahead = null;
+        return new Chunk();
+      }
+      ahead = start(++next);
+      return chunk;
+    }
+
+    void close() {
+      if (ahead != null) {
+        ahead.cancel(true);
+        ahead = null;
+      }
+      TdfLoader.close(channel);
+    }
+  }
+
+  private static void close(FileChannel channel) {
+    if (channel == null) {
+      return;
+    }
+    try {
+      channel.close();
+    } catch (IOException e) {
+      // nothing more to read from it anyway.
+    }
+  }
+
+  // cut the file into (start, end) ranges of about (target) bytes, each ending just after a newline
+  // (or at the end of the file).
+  private static List<long[]> split(FileChannel channel, long size, long target) throws IOException {
+    List<long[]> ranges = new ArrayList<long[]>();
+    ByteBuffer probe = ByteBuffer.allocate(4096);
+    long start = 0;
+    while (start < size) {
+      long end = Math.min(size, start + target);
+      // move the end up to just after the next newline.
+      while (end < size) {
+        probe.clear();
+        int read = channel.read(probe, end);
+        if (read <= 0) {
+          end = size;
+          break;
+        }
+        int i = 0;
+        while (i < read && probe.get(i) != LF) {
+          i++;
+        }
+        end += i;
+        if (i < read) {
+          end++;
+          break;
+        }
+      }
+      ranges.add(new long[] { start, end });
+      start = end;
+    }
+    if (ranges.isEmpty()) {
+      ranges.add(new long[] { 0, 0 });
+    }
+    return ranges;
+  }
+
+  private static Chunk parse(String fileName, FileChannel channel, long[] range, Charset charset) throws IOException {
+    Events.ReadFile event = new Events.ReadFile();
+    event.begin();
+    Chunk chunk = new Chunk();
+    int length = (int) (range[1] - range[0]);
+    if (length == 0) {
+      return chunk;
+    }
+    MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, range[0], length);
+    byte[] line = new byte[256];
+    // where each field starts and ends, in (line).
+    int[] starts = new int[8];
+    int[] ends = new int[8];
+    int pos = 0;
+    while (pos < length) {
+      // a line ends at \n, \r or \r\n, as for BufferedReader.readLine.
+      int end = pos;
+      while (end < length) {
+        byte b = buffer.get(end);
+        if (b == LF || b == CR) {
+          break;
+        }
+        end++;
+      }
+      int next = end + 1;
+      if (end < length && buffer.get(end) == CR && next < length && buffer.get(next) == LF) {
+        next++;
+      }
+      int lineLength = end - pos;
+      if (lineLength > line.length) {
+        line = new byte[Math.max(lineLength, 2 * line.length)];
+      }
+      buffer.get(pos, line, 0, lineLength);
+      long lineOffset = range[0] + pos;
+      pos = next;
+      if (lineLength > 0 && line[0] == SplDomain.COMMENT.charAt(0)) {
+        continue;
+      }
+      // split on tabs, dropping empty fields at the end, like String.split does.
+      int fields = 0;
+      int fieldStart = 0;
+      for (int i = 0; i <= lineLength; i++) {
+        if (i == lineLength || line[i] == TAB) {
+          if (fields == starts.length) {
+            starts = Arrays.copyOf(starts, 2 * fields);
+            ends = Arrays.copyOf(ends, 2 * fields);
+          }
+          starts[fields] = fieldStart;
+          ends[fields] = i;
+          fields++;
+          fieldStart = i + 1;
+        }
+      }
+      if (fields > 1) {
+        while (fields > 0 && starts[fields - 1] == ends[fields - 1]) {
+          fields--;
+        }
+      }
+      if (fields < 3) {
+        chunk.errors.append(String.format("only %d fields in line '%s' - need at least 3\n", fields,
+            new String(line, 0, lineLength, charset)));
+        continue;
+      } else if (fields > 4) {
+        chunk.errors.append(String.format("%d fields in line '%s' - need at most 4\n", fields,
+            new String(line, 0, lineLength, charset)));
+        continue;
+      }
+      String author = new String(line, starts[0], ends[0] - starts[0], charset);
+      String title = new String(line, starts[1], ends[1] - starts[1], charset);
+      String recommender = new String(line, starts[2], ends[2] - starts[2], charset);
+      String status;
+      if (fields == 4) {
+        status = new String(line, starts[3], ends[3] - starts[3], charset);
+      } else {
+        status = recommender;
+        recommender = "";
+      }
+      Book book = new Book(author, title, recommender, Format.fromFile(status));
+      book.rawFormat = status;
+      book.fileRawFormat = status;
+      book.statusOffset = lineOffset + starts[fields - 1];
+      chunk.books.add(book);
+    }
+    event.record(fileName, range[0], length, chunk.books.size());
+    return chunk;
+  }
+
+  // the old way, a line at a time, for charsets where a byte isn't always a character.
+  private static List<MediaItem> readLines(String fileName) {
+    Events.ReadFile event = new Events.ReadFile();
+    event.begin();
+    List<MediaItem> books = new ArrayList<MediaItem>();
+    try (BufferedReader br = new BufferedReader(new FileReader(fileName))) {
+      for (;;) {
+        String line;
+        try {
+          line = br.readLine();
+        } catch (IOException e) {
+          break;
+        }
+        if (line == null) {
+          break;
+        }
+        Book book = parseLine(line);
+        if (book != null) {
+          books.add(book);
+        }
+      }
+    } catch (FileNotFoundException e) {
+      Log.error("could not read input file %s\n", fileName);
+      return null;
+    } catch (IOException e) {
+      // only closing it can get here; we have everything by then.
+    }
+    event.record(fileName, 0, new File(fileName).length(), books.size());
+    return books;
+  }
+
+  /**
+   * Parse one line of a books file, complaining about it if it's not a book.
+   * @param line the line, without its line end
+   * @return the book, null if it's a comment or a bad line.
+   */
+  static Book parseLine(String line) {
+    if (line.startsWith(SplDomain.COMMENT)) {
+      return null;
+    }
+    String[] args = line.split("\t");
+    int len = args.length;
+    if (len < 3) {
+      Log.error("only %d fields in line '%s' - need at least 3\n", len, line);
+      return null;
+    } else if (len > 4) {
+      Log.error("%d fields in line '%s' - need at most 4\n", len, line);
+      return null;
+    }
+    String recommender = (len == 4) ? args[2] : "";
+    String status = args[len - 1];
+    Book book = new Book(args[0], args[1], recommender, Format.fromFile(status));
+    book.rawFormat = status;
+    return book;
+  }
+}
@@ -0,0 +1,201 @@
+package fam.fishkin.spl;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Updates a books file by changing just the statuses that changed, and the
+ * "status as of" line at the top. Only the changes are held, not the books.
+ * When every change is the same length as what it replaces, they're written over the
+ * old bytes in place, so a run that changes a few dozen books writes a few hundred bytes.
+ * Otherwise the file is copied, with the changes, to a temp file next to it, which is then
+ * moved over it in one step.
+ * <p>
+ * The "status as of" line is written at a fixed width, so the date on it changes in place
+ * (the first run on a file written before that rewrites it once), and a run that upgrades
+ * nothing, the usual kind, writes just that line. A status only changes in place when the new
+ * one is the same length, and the statuses for the different formats aren't (?? becomes NO26 or
+ * H26, H26 becomes eBook26), so in practice a run that upgrades any book writes the whole file.
+ * Statuses aren't padded to make room, as the file is the user's to edit.
+ * <p>
+ * Only books read by {@link TdfLoader} from the same file can be placed in it.
+ * @author Ken Fishkin
+ *
+ */
+public class TdfUpdate implements MediaDomain.Update {
+  // one change: (before) at (offset) becomes (after).
+  private static class Patch {
+    final long offset;
+    final byte[] before;
+    final byte[] after;
+
+    Patch(long offset, byte[] before, byte[] after) {
+      this.offset = offset;
+      this.before = before;
+      this.after = after;
+    }
+  }
+
+  private final File file;
+  private final String statusLine;
+  private final Charset charset = Charset.defaultCharset();
+  private final List<Patch> patches = new ArrayList<Patch>();
+  private int unplaced = 0;
+  private long bytesWritten = 0;
+
+  /**
+   * @param file the books file the books were read from
+   * @param statusLine the new first line, without its line end
+   */
+  public TdfUpdate(File file, String statusLine) {
+    this.file = file;
+    this.statusLine = statusLine;
+  }
+
+  @Override
+  public void add(MediaItem item) {
+    if (!(item instanceof Book)) {
+      return;
+    }
+    Book book = (Book) item;
+    if (book.statusOffset < 0 || book.fileRawFormat == null) {
+      unplaced++;
+      return;
+    }
+    if (!book.rawFormat.equals(book.fileRawFormat)) {
+      byte[] before = book.fileRawFormat.getBytes(charset);
+      patches.add(new Patch(book.statusOffset, before, book.rawFormat.getBytes(charset)));
+    }
+  }
+
+  /**
+   * @return how many bytes finish wrote to disk
+   */
+  public long getBytesWritten() {
+    return bytesWritten;
+  }
+
+  @Override
+  public boolean finish() {
+    if (unplaced > 0) {
+      Log.error("%d books weren't read from %s, and can't be put in it\n", unplaced, file);
+    }
+    // the rest are still written, but the run's results aren't all in the file.
+    boolean complete = (unplaced == 0);
+    Events.UpdateFile event = new Events.UpdateFile();
+    event.begin();
+    int changes = patches.size();
+    patches.sort(Comparator.comparingLong(patch -> patch.offset));
+    try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+      patches.add(0, statusPatch(channel));
+      // the file has to still be the one the books were read from.
+      for (Patch patch : patches) {
+        ByteBuffer found = ByteBuffer.allocate(patch.before.length);
+        channel.read(found, patch.offset);
+        if (found.hasRemaining() || !Arrays.equals(found.array(), patch.before)) {
+          Log.error("%s changed during the run, not updating it\n", file);
+          return false;
+        }
+      }
+      boolean inPlace = true;
+      for (Patch patch : patches) {
+        inPlace &= (patch.before.length == patch.after.length);
+      }
+      if (inPlace) {
+        for (Patch patch : patches) {
+          bytesWritten += channel.write(ByteBuffer.wrap(patch.after), patch.offset);
+        }
+        channel.force(false);
+        event.record(file.toString(), changes, bytesWritten);
+        return complete;
+      }
+    } catch (IOException e) {
+      Log.error("could not update %s: %s\n", file, e);
+      return false;
+    }
+    if (!rewrite()) {
+      return false;
+    }
+    event.record(file.toString(), changes, bytesWritten);
+    return complete;
+  }
+
+  // the change to the "status as of" line, or the line to put in if there isn't one.
+  private Patch statusPatch(FileChannel channel) throws IOException {
+    String prefix = SplDomain.COMMENT + " status as of ";
+    ByteBuffer head = ByteBuffer.allocate(256);
+    channel.read(head, 0);
+    int length = 0;
+    while (length < head.position() && head.get(length) != '\n' && head.get(length) != '\r') {
+      length++;
+    }
+    byte[] first = Arrays.copyOf(head.array(), length);
+    if (new String(first, charset).startsWith(prefix) && length < head.capacity()) {
+      // a shorter line is padded out to fit where the old one was.
+      byte[] after = statusLine.getBytes(charset);
+      if (after.length < first.length) {
+        after = (statusLine + " ".repeat(first.length - after.length)).getBytes(charset);
+      }
+      return new Patch(0, first, after);
+    }
+    return new Patch(0, new byte[0], (statusLine + "\n").getBytes(charset));
+  }
+
+  // copy the file to a temp file next to it, making the changes on the way, and move that over it.
+  // true if it worked.
+  private boolean rewrite() {
+    Path path = file.toPath().toAbsolutePath();
+    Path temp = null;
+    try {
+      temp = Files.createTempFile(path.getParent(), path.getFileName().toString(), ".tmp");
+      SplDomain.copyPermissions(path, temp);
+      try (FileChannel in = FileChannel.open(path, StandardOpenOption.READ);
+          FileChannel out = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+        long at = 0;
+        for (Patch patch : patches) {
+          bytesWritten += copy(in, at, patch.offset, out);
+          bytesWritten += out.write(ByteBuffer.wrap(patch.after));
+          at = patch.offset + patch.before.length;
+        }
+        bytesWritten += copy(in, at, in.size(), out);
+        out.force(false);
+      }
+      try {
+        Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+      } catch (AtomicMoveNotSupportedException e) {
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING);
+      }
+      return true;
+    } catch (IOException e) {
+      Log.error("could not update %s: %s\n", file, e);
+      if (temp != null) {
+        temp.toFile().delete();
+      }
+      return false;
+    }
+  }
+
+  private static long copy(FileChannel in, long from, long to, FileChannel out) throws IOException {
+    long copied = 0;
+    while (from + copied < to) {
+      long n = in.transferTo(from + copied, to - from - copied, out);
+      if (n <= 0) {
+        break;
+      }
+      copied += n;
+    }
+    return copied;
+  }
+}
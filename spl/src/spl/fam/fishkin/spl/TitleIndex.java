@@ -0,0 +1,366 @@
+package fam.fishkin.spl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * An index for finding the titles within some edit distance of a query, without
+ * comparing the query against every title.
+ * It's an inverted index of the letter pairs (bigrams) in each title. Two strings
+ * within k edits of each other must share at least max(len1, len2) + 1 - 2k bigrams
+ * (counting the padding at each end), so counting shared bigrams through the index
+ * rules out almost every title before we pay for a real edit distance.
+ * Titles are normalised (lower case, single spaces) before they're indexed or searched.
+ * A catalog's titles are indexed with their years, e.g. "heat (1995)", the same way they're matched.
+ * @author Ken Fishkin
+ *
+ */
+public class TitleIndex {
+  private static final char PAD = '\u0000';
+  // how many titles first tries before it counts bigrams.
+  private static final int PROBES = 32;
+
+  private final String[] keys;
+  // each key's length, kept apart so the filters don't have to load every String they look at.
+  private final int[] lengths;
+  // bigram -> the rows it appears in, sorted, a row repeated once per occurrence.
+  private final Map<Integer, int[]> postings;
+  // length -> the rows whose normalised title has that length.
+  private final int[][] rowsByLength;
+  private final Queue<int[]> scratch = new ConcurrentLinkedQueue<int[]>();
+
+  private TitleIndex(String[] keys) {
+    this.keys = keys;
+    lengths = new int[keys.length];
+    Map<Integer, List<Integer>> building = new HashMap<Integer, List<Integer>>();
+    int maxLength = 0;
+    for (int row = 0; row < keys.length; row++) {
+      for (int gram : bigrams(keys[row])) {
+        building.computeIfAbsent(gram, g -> new ArrayList<Integer>()).add(row);
+      }
+      lengths[row] = keys[row].length();
+      maxLength = Math.max(maxLength, lengths[row]);
+    }
+    postings = new HashMap<Integer, int[]>();
+    for (Map.Entry<Integer, List<Integer>> entry : building.entrySet()) {
+      postings.put(entry.getKey(), entry.getValue().stream().mapToInt(Integer::intValue).toArray());
+    }
+    int[] counts = new int[maxLength + 1];
+    for (int length : lengths) {
+      counts[length]++;
+    }
+    rowsByLength = new int[maxLength + 1][];
+    for (int len = 0; len <= maxLength; len++) {
+      rowsByLength[len] = new int[counts[len]];
+      counts[len] = 0;
+    }
+    for (int row = 0; row < keys.length; row++) {
+      int len = lengths[row];
+      rowsByLength[len][counts[len]++] = row;
+    }
+  }
+
+  /**
+   * Index every title in a catalog, by row, with its year, as {@link #withYear} puts them together.
+   * The year is matched along with the title, so the closest key is the closest movie.
+   * @param catalog the catalog
+   * @return the index
+   */
+  public static TitleIndex of(NetflixCatalog catalog) {
+    String[] keys = new String[catalog.size()];
+    for (int i = 0; i < keys.length; i++) {
+      keys[i] = normalize(withYear(catalog.title(i), catalog.year(i)));
+    }
+    return new TitleIndex(keys);
+  }
+
+  /**
+   * @param title a movie's title
+   * @param year the year it came out
+   * @return the two as one string, e.g. "Heat (1995)", as the catalog is indexed and matched.
+   */
+  public static String withYear(String title, int year) {
+    return title + " (" + year + ")";
+  }
+
+  /**
+   * @param title a title
+   * @return the title as it's indexed: lower case, trimmed, runs of spaces squeezed to one.
+   */
+  public static String normalize(String title) {
+    return title.trim().toLowerCase().replaceAll("\\s+", " ");
+  }
+
+  /**
+   * @return how many titles are indexed
+   */
+  public int size() {
+    return keys.length;
+  }
+
+  /**
+   * Find every title within a distance of the query.
+   * @param title the query
+   * @param maxDistance the most edits allowed
+   * @return the rows of the titles found, in no particular order
+   */
+  public int[] within(String title, int maxDistance) {
+    return search(normalize(title), maxDistance, Integer.MAX_VALUE, new int[1], false);
+  }
+
+  /**
+   * Find the titles closest to the query: every title within (slack) of the
+   * closest one, as long as that's within (maxDistance).
+   * The search starts small and only widens if nothing close enough turns up, and the radius
+   * shrinks as closer titles turn up, so this counts and verifies far fewer titles than
+   * {@link #within} with the same maxDistance.
+   * @param title the query
+   * @param maxDistance the most edits allowed
+   * @param slack how much further than the closest title to look. Use this when the caller's
+   *     own distance adds a little to the title's, e.g. a year.
+   * @return the rows of the titles found, in no particular order
+   */
+  public int[] nearest(String title, int maxDistance, int slack) {
+    String key = normalize(title);
+    int[] closest = new int[1];
+    for (int radius = Math.min(maxDistance, Math.max(1, slack)); ; radius = Math.min(maxDistance, 2 * radius)) {
+      int[] found = search(key, radius, slack, closest, false);
+      // everything within (slack) of the closest was in range: nothing further out can be.
+      if (radius == maxDistance || (found.length > 0 && closest[0] + slack <= radius)) {
+        return found;
+      }
+    }
+  }
+
+  /**
+   * Find a title within a distance of the query, if there is one. A few titles with the query's
+   * rarest letter pair are tried first, then the rest, most letter pairs shared first, and the first
+   * one in range is it, so this is much cheaper than {@link #nearest} when all that matters is
+   * whether there's one.
+   * @param title the query
+   * @param maxDistance the most edits allowed
+   * @return the row of the title found, -1 if there's none
+   */
+  public int first(String title, int maxDistance) {
+    String key = normalize(title);
+    int row = probe(key, maxDistance);
+    if (row >= 0) {
+      return row;
+    }
+    int[] found = search(key, maxDistance, Integer.MAX_VALUE, new int[1], true);
+    return (found.length == 0) ? -1 : found[0];
+  }
+
+  // a title in range out of the first few that share the query's rarest bigram, -1 if none of them is.
+  // When the range is wide next to the query's length there usually is one, found without counting.
+  private int probe(String key, int maxDistance) {
+    int[] rarest = null;
+    for (int gram : bigrams(key)) {
+      int[] rows = postings.get(gram);
+      if (rows != null && (rarest == null || rows.length < rarest.length)) {
+        rarest = rows;
+      }
+    }
+    if (rarest == null) {
+      return -1;
+    }
+    Distance.Query query = Distance.query(key);
+    for (int i = 0; i < rarest.length && i < PROBES; i++) {
+      if (query.distanceAtMost(keys[rarest[i]], maxDistance) <= maxDistance) {
+        return rarest[i];
+      }
+    }
+    return -1;
+  }
+
+  // key is normalised; closest[0] is set to the distance of the closest title found.
+  // If (justOne), the search stops at the first title in range.
+  private int[] search(String key, int maxDistance, int slack, int[] closest, boolean justOne) {
+    int len = key.length();
+    int[] grams = bigrams(key);
+    Arrays.sort(grams);
+    // the query's distinct bigrams, with how often each is in it, and the rows each is in.
+    int[] queryCounts = new int[grams.length];
+    int[][] lists = new int[grams.length][];
+    int distinctCount = 0;
+    for (int i = 0; i < grams.length; ) {
+      int gram = grams[i];
+      int queryCount = 0;
+      while (i < grams.length && grams[i] == gram) {
+        queryCount++;
+        i++;
+      }
+      lists[distinctCount] = postings.get(gram);
+      // a bigram no title has can't be shared.
+      queryCounts[distinctCount] = (lists[distinctCount] == null) ? 0 : queryCount;
+      distinctCount++;
+    }
+    // a title in range shares at least (len + 1 - 2 * maxDistance) bigrams with the query. Leaving
+    // out the commonest ones (e.g. "th", " (") until just one fewer than that are left out, a title
+    // in range still shares at least one with the query that's counted: it's still found, and the
+    // count is at most (skipped) short. Those are the long lists, so this is most of the work saved.
+    int skipped = skipCommon(lists, queryCounts, distinctCount, len + 1 - 2 * maxDistance - 1);
+    // count the bigrams each row shares with the query, for the rows that share any.
+    int[] shared = takeScratch();
+    int[] touched = new int[16];
+    int touchedCount = 0;
+    for (int i = 0; i < distinctCount; i++) {
+      if (queryCounts[i] == 0) {
+        continue;
+      }
+      int[] rows = lists[i];
+      int queryCount = queryCounts[i];
+      for (int j = 0; j < rows.length; ) {
+        int row = rows[j];
+        int rowCount = 0;
+        while (j < rows.length && rows[j] == row) {
+          rowCount++;
+          j++;
+        }
+        if (shared[row] == 0) {
+          if (touchedCount == touched.length) {
+            touched = Arrays.copyOf(touched, touchedCount * 2);
+          }
+          touched[touchedCount++] = row;
+        }
+        shared[row] += Math.min(queryCount, rowCount);
+      }
+    }
+    // short titles can be within range without sharing any bigrams at all.
+    for (int other = 0; other < rowsByLength.length && other <= len + maxDistance; other++) {
+      if (Math.abs(other - len) > maxDistance || Math.max(other, len) + 1 - 2 * maxDistance > 0) {
+        continue;
+      }
+      for (int row : rowsByLength[other]) {
+        if (shared[row] == 0) {
+          if (touchedCount == touched.length) {
+            touched = Arrays.copyOf(touched, touchedCount * 2);
+          }
+          touched[touchedCount++] = row;
+        }
+      }
+    }
+    // only the rows that could be in range are worth verifying. Verify the most promising first, so a
+    // close match shrinks the radius early: ordered by shared count, most first, which takes one pass
+    // as a count is at most len + 1. Each is packed with its count into one long.
+    int[] byShared = new int[len + 2];
+    int passed = 0;
+    for (int i = 0; i < touchedCount; i++) {
+      int row = touched[i];
+      int other = lengths[row];
+      if (Math.abs(other - len) <= maxDistance && shared[row] + skipped >= Math.max(other, len) + 1 - 2 * maxDistance) {
+        touched[passed++] = row;
+        byShared[shared[row]]++;
+      } else {
+        shared[row] = 0;
+      }
+    }
+    for (int count = byShared.length - 1, at = 0; count >= 0; count--) {
+      int rows = byShared[count];
+      byShared[count] = at;
+      at += rows;
+    }
+    long[] order = new long[passed];
+    for (int i = 0; i < passed; i++) {
+      int row = touched[i];
+      order[byShared[shared[row]]++] = ((long) shared[row] << 32) | row;
+      shared[row] = 0;
+    }
+    giveBackScratch(shared);
+    Distance.Query query = Distance.query(key);
+    int radius = maxDistance;
+    int best = Integer.MAX_VALUE;
+    int[] hits = new int[16];
+    int[] hitDistances = new int[16];
+    int hitCount = 0;
+    for (int i = 0; i < order.length; i++) {
+      int row = (int) order[i];
+      // counted plus skipped is the most this row (and every row after it) can share.
+      int mostShared = (int) (order[i] >>> 32) + skipped;
+      if (mostShared < len + 1 - 2 * radius) {
+        break;
+      }
+      int other = lengths[row];
+      if (Math.abs(other - len) > radius || mostShared < Math.max(other, len) + 1 - 2 * radius) {
+        continue;
+      }
+      int d = query.distanceAtMost(keys[row], radius);
+      if (d > radius) {
+        continue;
+      }
+      if (hitCount == hits.length) {
+        hits = Arrays.copyOf(hits, hitCount * 2);
+        hitDistances = Arrays.copyOf(hitDistances, hitCount * 2);
+      }
+      hits[hitCount] = row;
+      hitDistances[hitCount++] = d;
+      if (justOne) {
+        best = d;
+        break;
+      }
+      if (d < best && slack != Integer.MAX_VALUE) {
+        best = d;
+        radius = Math.min(maxDistance, best + slack);
+      }
+    }
+    closest[0] = best;
+    int count = 0;
+    for (int i = 0; i < hitCount; i++) {
+      if (hitDistances[i] <= radius) {
+        hits[count++] = hits[i];
+      }
+    }
+    return Arrays.copyOf(hits, count);
+  }
+
+  // leaves out (zeroes the query count of) the bigrams with the longest lists, longest first, as long
+  // as no more than (budget) bigram occurrences are left out in all. Returns how many were left out.
+  private int skipCommon(int[][] lists, int[] queryCounts, int distinctCount, int budget) {
+    int skipped = 0;
+    while (true) {
+      int commonest = -1;
+      int longest = 0;
+      for (int i = 0; i < distinctCount; i++) {
+        if (queryCounts[i] > 0 && lists[i].length > longest && skipped + queryCounts[i] <= budget) {
+          commonest = i;
+          longest = lists[i].length;
+        }
+      }
+      if (commonest < 0) {
+        return skipped;
+      }
+      skipped += queryCounts[commonest];
+      queryCounts[commonest] = 0;
+    }
+  }
+
+  // a row -> count array to count in, all zeroes. Lookups run at once, so each gets its own,
+  // but they're kept for the next lookup rather than allocated (catalog-sized) every time.
+  private int[] takeScratch() {
+    int[] shared = scratch.poll();
+    return (shared == null) ? new int[keys.length] : shared;
+  }
+
+  // the caller has put it back to all zeroes.
+  private void giveBackScratch(int[] shared) {
+    scratch.offer(shared);
+  }
+
+  // the bigrams of a string, padded at each end, each as (first char << 16 | second char).
+  private static int[] bigrams(String s) {
+    int[] grams = new int[s.length() + 1];
+    char prev = PAD;
+    for (int i = 0; i < s.length(); i++) {
+      char c = s.charAt(i);
+      grams[i] = (prev << 16) | c;
+      prev = c;
+    }
+    grams[s.length()] = (prev << 16) | PAD;
+    return grams;
+  }
+}
@@ -0,0 +1,150 @@
+package fam.fishkin.spl;
+
+import java.net.URI;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A token bucket used to pace requests to a web site, one bucket per host.
+ * Callers reserve a token before each request and sleep until it is due,
+ * so concurrent callers are spread out evenly instead of all hitting the
+ * site at once.
+ * @author Ken Fishkin
+ *
+ */
+public class TokenBucket {
+  // JSoup recommends waiting a few seconds between pings, so by default
+  // allow one request every 2 seconds per host.
+  public static final double DEFAULT_RATE = 0.5;
+  public static final int DEFAULT_BURST = 1;
+
+  private static final Map<String, TokenBucket> buckets = new ConcurrentHashMap<String, TokenBucket>();
+  private static volatile double defaultRate = DEFAULT_RATE;
+  private static volatile int defaultBurst = DEFAULT_BURST;
+
+  private final ReentrantLock lock = new ReentrantLock();
+  private double ratePerSecond;
+  private final double capacity;
+  private double tokens;
+  private long lastRefillNanos;
+
+  public TokenBucket(double ratePerSecond, int burst) {
+    if (ratePerSecond <= 0) {
+      throw new IllegalArgumentException("rate must be positive: " + ratePerSecond);
+    }
+    this.ratePerSecond = ratePerSecond;
+    this.capacity = Math.max(1, burst);
+    this.tokens = this.capacity;
+    this.lastRefillNanos = System.nanoTime();
+  }
+
+  /**
+   * Sets the rate and burst used for buckets created from now on.
+   * @param ratePerSecond requests per second allowed per host
+   * @param burst how many requests may go out back-to-back after an idle period
+   */
+  public static void configure(double ratePerSecond, int burst) {
+    if (ratePerSecond <= 0) {
+      throw new IllegalArgumentException("rate must be positive: " + ratePerSecond);
+    }
+    defaultRate = ratePerSecond;
+    defaultBurst = burst;
+    buckets.clear();
+  }
+
+  /**
+   * @param host the host name
+   * @return the (shared) bucket for that host
+   */
+  public static TokenBucket forHost(String host) {
+    String key = (host == null) ? "" : host.toLowerCase();
+    return buckets.computeIfAbsent(key, k -> new TokenBucket(defaultRate, defaultBurst));
+  }
+
+  /**
+   * @param url a full URL
+   * @return the (shared) bucket for the URL's host
+   */
+  public static TokenBucket forUrl(String url) {
+    String host = null;
+    try {
+      host = URI.create(url).getHost();
+    } catch (IllegalArgumentException e) {
+      Log.error("could not parse host of %s\n", url);
+    }
+    return forHost(host);
+  }
+
+  public double getRate() {
+    lock.lock();
+    try {
+      return ratePerSecond;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Change the rate. Tokens already earned at the old rate are kept.
+   * @param newRate requests per second
+   */
+  public void setRate(double newRate) {
+    if (newRate <= 0) {
+      throw new IllegalArgumentException("rate must be positive: " + newRate);
+    }
+    lock.lock();
+    try {
+      refill();
+      ratePerSecond = newRate;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Blocks until the caller may send its next request.
+   */
+  public void acquire() {
+    long waitNanos;
+    lock.lock();
+    try {
+      refill();
+      // reserve a token now, even if that takes us into debt: the debt
+      // is how long this caller has to wait, and later callers queue up behind it.
+      tokens -= 1;
+      waitNanos = (tokens >= 0) ? 0 : (long) (-tokens / ratePerSecond * TimeUnit.SECONDS.toNanos(1));
+    } finally {
+      lock.unlock();
+    }
+    if (waitNanos > 0) {
+      try {
+        TimeUnit.NANOSECONDS.sleep(waitNanos);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  /**
+   * Give back a token taken by {@link #acquire()}, when the request turned out
+   * to cost the site next to nothing (e.g. a 304 Not Modified).
+   */
+  public void refund() {
+    lock.lock();
+    try {
+      refill();
+      tokens = Math.min(capacity, tokens + 1);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private void refill() {
+    long now = System.nanoTime();
+    double elapsedSeconds = (now - lastRefillNanos) / (double) TimeUnit.SECONDS.toNanos(1);
+    tokens = Math.min(capacity, tokens + elapsedSeconds * ratePerSecond);
+    lastRefillNanos = now;
+  }
+}
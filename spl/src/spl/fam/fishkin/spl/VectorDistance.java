@@ -0,0 +1,91 @@
+package fam.fishkin.spl;
+
+import jdk.incubator.vector.LongVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * The SIMD version of {@link Distance.Query#distances}: Myers' bit-parallel distance, run
+ * for several candidates at once, one candidate per vector lane (e.g. 4 on AVX2).
+ * Every lane follows the same steps, just with its own candidate's characters gathered in,
+ * so there's no branching per lane; a lane whose candidate has run out just stops updating.
+ * <p>
+ * This uses the incubating Vector API, so it's only loaded when the JVM was started with
+ * "--add-modules jdk.incubator.vector". {@link Distance} checks for that and uses the
+ * scalar code otherwise.
+ * @author Ken Fishkin
+ *
+ */
+class VectorDistance {
+  private static final VectorSpecies<Long> SPECIES = LongVector.SPECIES_PREFERRED;
+
+  private VectorDistance() {
+  }
+
+  /**
+   * @return how many candidates are scored at once
+   */
+  static int lanes() {
+    return SPECIES.length();
+  }
+
+  /**
+   * Score candidates against a pattern of at most 64 characters.
+   * @param masks the pattern's match mask for each character code, with an all-zero entry for "no match"
+   * @param noMatch the index of the all-zero entry
+   * @param length the pattern length, 1 to 64
+   * @param codes each candidate's characters, as indexes into masks
+   * @param order which candidates to score, shortest first works best
+   * @param distances where to put each candidate's distance, by candidate
+   */
+  static void distances(long[] masks, int noMatch, int length, int[][] codes, int[] order, int[] distances) {
+    int lanes = SPECIES.length();
+    long lastBit = 1L << (length - 1);
+    long[] lengths = new long[lanes];
+    int[] gather = new int[0];
+    long[] out = new long[lanes];
+    for (int start = 0; start < order.length; start += lanes) {
+      int count = Math.min(lanes, order.length - start);
+      int columns = 0;
+      for (int lane = 0; lane < lanes; lane++) {
+        lengths[lane] = (lane < count) ? codes[order[start + lane]].length : 0;
+        columns = Math.max(columns, (int) lengths[lane]);
+      }
+      // lay the characters out column by column, padding finished candidates with "no match".
+      if (gather.length < columns * lanes) {
+        gather = new int[columns * lanes];
+      }
+      for (int lane = 0; lane < lanes; lane++) {
+        int[] c = (lane < count) ? codes[order[start + lane]] : null;
+        for (int j = 0; j < columns; j++) {
+          gather[j * lanes + lane] = (c != null && j < c.length) ? c[j] : noMatch;
+        }
+      }
+      LongVector ends = LongVector.fromArray(SPECIES, lengths, 0);
+      LongVector plus = LongVector.broadcast(SPECIES, -1L);
+      LongVector minus = LongVector.zero(SPECIES);
+      LongVector score = LongVector.broadcast(SPECIES, length);
+      for (int j = 0; j < columns; j++) {
+        VectorMask<Long> active = ends.compare(VectorOperators.GT, j);
+        LongVector eq = LongVector.fromArray(SPECIES, masks, 0, gather, j * lanes);
+        LongVector xv = eq.or(minus);
+        LongVector xh = eq.and(plus).add(plus).lanewise(VectorOperators.XOR, plus).or(eq);
+        LongVector ph = minus.or(xh.or(plus).not());
+        LongVector mh = plus.and(xh);
+        VectorMask<Long> up = ph.and(lastBit).compare(VectorOperators.NE, 0L).and(active);
+        VectorMask<Long> down = mh.and(lastBit).compare(VectorOperators.NE, 0L).and(active);
+        score = score.add(1L, up).sub(1L, down);
+        // the top row of the matrix goes up by one each column.
+        ph = ph.lanewise(VectorOperators.LSHL, 1).or(1L);
+        mh = mh.lanewise(VectorOperators.LSHL, 1);
+        plus = plus.blend(mh.or(xv.or(ph).not()), active);
+        minus = minus.blend(ph.and(xv), active);
+      }
+      score.intoArray(out, 0);
+      for (int lane = 0; lane < count; lane++) {
+        distances[order[start + lane]] = (int) out[lane];
+      }
+    }
+  }
+}
@@ -1,34 +1,26 @@
 package fam.fishkin.spl;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.StringReader;
+import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.HttpURLConnection;
-import java.net.MalformedURLException;
-import java.net.ProtocolException;
-import java.net.URL;
 import java.net.URLEncoder;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.Vector;
 
-import javax.imageio.metadata.IIOMetadataNode;
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 
-import org.jsoup.Connection;
 import org.jsoup.Jsoup;
 import org.jsoup.nodes.Document;
-import org.jsoup.select.Elements;
-import org.w3c.dom.Element;
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
-import org.xml.sax.InputSource;
-import org.xml.sax.SAXException;
+import org.jsoup.nodes.Element;
+import org.jsoup.select.Evaluator;
+import org.jsoup.select.QueryParser;
 
 /**
  * Helper class for some of the Web querying/scraping.
@@ -36,6 +28,24 @@ import org.xml.sax.SAXException;
  *
  */
 public class WebHelper {
+	// how many times to retry a request the site throttled (429 or 503).
+	private static final int MAX_RETRIES = 3;
+	/** The library searched unless another is asked for. */
+	public static final String DEFAULT_LIBRARY = "seattle";
+	// where every bibliocommons library's RSS feeds come from.
+	private static final String RSS_GATEWAY = "gateway.bibliocommons.com";
+	private static volatile HttpDiskCache cache = null;
+	private static final XMLInputFactory xmlInputFactory = newXmlInputFactory();
+	private static final Evaluator RESULT = QueryParser.parse("div.cp-search-result-item-content");
+
+	private static XMLInputFactory newXmlInputFactory() {
+		XMLInputFactory factory = XMLInputFactory.newInstance();
+		// search results never need a DTD, and we don't want to go fetching one.
+		factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+		factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+		factory.setProperty(XMLInputFactory.IS_COALESCING, true);
+		return factory;
+	}
 
 	/**
 	 * finds the URL to use to ping the web site.
@@ -55,183 +65,420 @@ public class WebHelper {
 				firstTime = false;
 				buf.append(entry.getKey() + "=" + encoded);
 			} catch (UnsupportedEncodingException e) {
-				System.err.printf("could not encode %s\n",  entry.getValue());
+				Log.error("could not encode %s\n",  entry.getValue());
 			}
 		}
 		return buf.toString();
 	}
 
 	/**
-	 * Query the SPL web site on a book
-	 * @param book the desired book
-	 * @return the list of results
+	 * Sets the on-disk cache to check before going to the web.
+	 * @param diskCache the cache, null for none.
 	 */
-	public static Elements findCandidates(Book book) {
-		if (book == null) {
-			return null;
+	public static void setCache(HttpDiskCache diskCache) {
+		cache = diskCache;
+	}
+
+	public static HttpDiskCache getCache() {
+		return cache;
+	}
+
+	/**
+	 * GET a URL, politely. A fresh cache entry is used without touching the network at all.
+	 * Otherwise we wait our turn on the site's token bucket and ask for the page,
+	 * revalidating the cached copy if we have one.
+	 * @param url the URL
+	 * @return the response
+	 * @throws IOException if the request couldn't be made
+	 */
+	static HttpTransport.Response fetch(String url) throws IOException {
+		return fetch(url, AdaptiveLimiter.forUrl(url));
+	}
+
+	/**
+	 * Fetch a URL, as {@link #fetch(String)}, paced by the given limiter.
+	 * @param url the URL
+	 * @param limiter what paces the requests
+	 * @return the response
+	 * @throws IOException if the request couldn't be made
+	 */
+	static HttpTransport.Response fetch(String url, AdaptiveLimiter limiter) throws IOException {
+		HttpDiskCache.Entry cached = (cache == null) ? null : cache.get(url);
+		if (cached != null && cache.isFresh(cached)) {
+			cache.countFreshHit();
+			return cached.toResponse();
 		}
-		if (book.isRead()) {
-			return null;
+		// JSoup recommends waiting a few seconds between pings; the per-host
+		// limiter spaces the requests out, even when several lookups run at once,
+		// and backs off when the site tells us to.
+		HttpTransport.Response response;
+		for (int attempt = 0; ; attempt++) {
+			limiter.acquire();
+			Events.Fetch event = new Events.Fetch();
+			event.begin();
+			long start = System.nanoTime();
+			long took;
+			response = null;
+			try {
+				response = HttpTransport.get(url, cached == null ? null : cached.conditionalHeaders());
+			} catch (IOException e) {
+				Metrics.FETCH_ERRORS.increment();
+				throw e;
+			} finally {
+				// whatever happened, the limiter gets its slot back.
+				took = System.nanoTime() - start;
+				if (response == null) {
+					limiter.onFailure();
+				} else {
+					limiter.onResponse(response.statusCode, took, AdaptiveLimiter.retryAfter(response.headers));
+				}
+			}
+			Metrics.FETCH.record(took);
+			if (event.shouldCommit()) {
+				event.url = url;
+				event.attempt = attempt;
+				event.statusCode = response.statusCode;
+				event.bytesReceived = (response.body == null) ? 0 : response.body.length;
+				event.revalidation = (cached != null);
+				event.commit();
+			}
+			if (!isThrottled(response.statusCode) || attempt >= MAX_RETRIES) {
+				break;
+			}
+			Log.error("got status %d on %s, retrying\n", response.statusCode, url);
+			Metrics.RETRIES.increment();
+		}
+		if (cached != null && response.statusCode == HttpURLConnection.HTTP_NOT_MODIFIED) {
+			// a 304 costs the site next to nothing, so it doesn't count against our pacing.
+			limiter.refund();
+			cache.countRevalidated();
+			cache.refresh(cached);
+			return cached.toResponse();
 		}
+		if (cache != null && response.statusCode == HttpURLConnection.HTTP_OK) {
+			cache.put(response);
+		}
+		return response;
+	}
+
+	private static boolean isThrottled(int statusCode) {
+		return statusCode == 429 || statusCode == HttpURLConnection.HTTP_UNAVAILABLE;
+	}
+
+	/**
+	 * The query params for searching the catalog for a book.
+	 * @param book the book
+	 * @return the params
+	 */
+	static Map<String, String> searchParams(Book book) {
 		Map<String, String> queryParams = new HashMap<String, String>();
 		queryParams.put("custom_edit", "false");
 		queryParams.put("suppress", "true");
 		queryParams.put("f_FORMAT", "EBOOK|BK");
 		queryParams.put("searchType", "title");
-		// strip subtitle, indicated by a colon:
+		queryParams.put("query", searchTitle(book));
+		return queryParams;
+	}
+
+	/**
+	 * @param book a book
+	 * @return the title to search for: the subtitle, indicated by a colon, is stripped.
+	 */
+	static String searchTitle(Book book) {
 		int idx = book.title.indexOf(':');
-		String searchTitle = (idx == -1) ? book.title : book.title.substring(0, idx); 
-		queryParams.put("query", searchTitle);
-		String base = "https://seattle.bibliocommons.com/v2/search";
-		String encoded = WebHelper.toURL(base, queryParams);
-		final String userAgent = "Mozilla/5.0 (Windows NT 10.0; Win64; x64) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/80.0.3987.122 Safari/537.36";
-		Connection connection = Jsoup.connect(encoded)
-				.userAgent(userAgent);
-		Document doc;
-		try {
-			doc = connection.get();
-		} catch (IOException e) {
-			System.err.printf("toResultsList: IO exception on book '%s': %s\n", book.title, e.toString());
+		return (idx == -1) ? book.title : book.title.substring(0, idx);
+	}
+
+	/**
+	 * A key that's the same for any two books whose searches would return the same results:
+	 * the normalised search title, plus the params that narrow the search.
+	 * @param kind which kind of search, e.g. "html" or "rss"
+	 * @param library which library's catalog is searched
+	 * @param book the book
+	 * @return the key
+	 */
+	public static String queryKey(String kind, String library, Book book) {
+		Map<String, String> queryParams = searchParams(book);
+		String title = queryParams.get("query").trim().toLowerCase().replaceAll("\\s+", " ");
+		return kind + "|" + library + "|" + queryParams.get("f_FORMAT") + "|" + queryParams.get("searchType") + "|" + title;
+	}
+
+	/**
+	 * Query a library's web site on a book
+	 * @param library the library, as it appears in its bibliocommons URLs, e.g. "seattle"
+	 * @param book the desired book
+	 * @return the list of results. The page itself isn't kept.
+	 */
+	public static List<CandidateRecord> findCandidates(String library, Book book) {
+		if (book == null) {
 			return null;
 		}
-		Elements resultList = doc.select("div.cp-search-result-item-content");
-		// JSoup recommends waiting a few seconds between pings...
-		final long SLEEP_TIME_MS = 2000;
+		if (book.isRead()) {
+			return null;
+		}
+		Map<String, String> queryParams = searchParams(book);
+		String base = "https://" + library + ".bibliocommons.com/v2/search";
+		String encoded = WebHelper.toURL(base, queryParams);
+		Events.Search search = new Events.Search();
+		search.begin();
+		HttpTransport.Response response = null;
+		List<CandidateRecord> records = null;
 		try {
-			Thread.sleep(SLEEP_TIME_MS);
-		} catch (InterruptedException e) {
+			try {
+				response = fetch(encoded);
+			} catch (IOException e) {
+				Log.error("toResultsList: IO exception on book '%s': %s\n", book.title, e.toString());
+				return null;
+			}
+			if (response.statusCode != HttpURLConnection.HTTP_OK) {
+				Log.error("toResultsList: got status %d on book '%s'\n", response.statusCode, book.title);
+				return null;
+			}
+			Events.Parse parse = new Events.Parse();
+			parse.begin();
+			long start = System.nanoTime();
+			long allocated = Metrics.allocatedBytes();
+			try {
+				records = parseResults(Jsoup.parse(response.bodyStream(), null, encoded));
+				return records;
+			} catch (IOException e) {
+				Log.error("toResultsList: IO exception on book '%s': %s\n", book.title, e.toString());
+				return null;
+			} finally {
+				Metrics.PARSE_HTML.record(System.nanoTime() - start);
+				if (!Metrics.PARSE_ALLOCATED_BYTES.addAllocatedSince(allocated)) {
+					Metrics.PARSE_UNMEASURED.increment();
+				}
+				commitParse(parse, "html", response, records);
+			}
+		} finally {
+			commitSearch(search, "html", book.title, encoded, response, records);
 		}
-		return resultList;
 	}
 
-	public static Vector<Node> findRSSCandidates(Book book) {
+	private static void commitSearch(Events.Search event, String kind, String query, String url,
+			HttpTransport.Response response, List<CandidateRecord> records) {
+		if (!event.shouldCommit()) {
+			return;
+		}
+		event.kind = kind;
+		event.query = query;
+		event.url = url;
+		event.statusCode = (response == null) ? 0 : response.statusCode;
+		event.bytesReceived = (response == null || response.body == null) ? 0 : response.body.length;
+		event.candidates = (records == null) ? 0 : records.size();
+		event.commit();
+	}
+
+	private static void commitParse(Events.Parse event, String kind, HttpTransport.Response response,
+			List<CandidateRecord> records) {
+		if (!event.shouldCommit()) {
+			return;
+		}
+		event.kind = kind;
+		event.url = response.url;
+		event.bytes = (response.body == null) ? 0 : response.body.length;
+		event.candidates = (records == null) ? 0 : records.size();
+		event.commit();
+	}
+
+	/**
+	 * Pull the results out of a search results page.
+	 * @param doc the page
+	 * @return the results, in page order.
+	 */
+	public static List<CandidateRecord> parseResults(Document doc) {
+		List<CandidateRecord> records = new ArrayList<CandidateRecord>();
+		for (Element result : doc.select(RESULT)) {
+			CandidateRecord record = CandidateRecord.fromWeb(result);
+			if (record != null) {
+				records.add(record);
+			}
+		}
+		return records;
+	}
+
+	/**
+	 * Query the RSS gateway on a book
+	 * @param library the library, as it appears in its bibliocommons URLs, e.g. "seattle"
+	 * @param book the desired book
+	 * @return the items in the feed
+	 */
+	public static List<CandidateRecord> findRSSCandidates(String library, Book book) {
 		if (book == null) {
 			return null;
 		}
 		if (book.isRead()) {
 			return null;
 		}
-		Vector<Node> cands = new Vector<Node>();
-		Map<String, String> queryParams = new HashMap<String, String>();
-		queryParams.put("custom_edit", "false");
-		queryParams.put("suppress", "true");
-		queryParams.put("f_FORMAT", "EBOOK|BK");
-		queryParams.put("searchType", "title");
-		// strip subtitle, indicated by a colon:
-		int idx = book.title.indexOf(':');
-		String searchTitle = (idx == -1) ? book.title : book.title.substring(0, idx); 
-		queryParams.put("query", searchTitle);
+		Map<String, String> queryParams = searchParams(book);
 		// https://gateway.bibliocommons.com/v2/libraries/seattle/rss/search?query=title%3A%28the%20secret%20gift%29%20%20%20formatcode%3A%28BK%20OR%20EBOOK%20%29&searchType=bl&custom_edit=false&suppress=true&view=grouped&_ga=2.226994717.124022377.1685555432-1439596961.1683266732&_gl=1*ciuhhy*_ga*MTQzOTU5Njk2MS4xNjgzMjY2NzMy*_ga_G99DMMNG39*MTY4NTU2OTA3NC41LjEuMTY4NTU2OTEzMy4wLjAuMA..
 
-		String base = "https://gateway.bibliocommons.com/v2/libraries/seattle/rss/search";
-		URL url = null;
-		try {
-			url = new URL(WebHelper.toURL(base, queryParams));
-		} catch (MalformedURLException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		}
-		final String userAgent = "Mozilla/5.0 (Windows NT 10.0; Win64; x64) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/80.0.3987.122 Safari/537.36";
-		HttpURLConnection con = null;
-		try {
-			con = (HttpURLConnection) url.openConnection();
-		} catch (IOException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+		return fetchRSS(library, WebHelper.toURL(rssBase(library), queryParams), "book '" + book.title + "'");
+	}
+
+	/**
+	 * Query the RSS gateway on several books at once, as
+	 * (title:(a) OR title:(b) ...) formatcode:(BK OR EBOOK).
+	 * The results for all the books come back mixed together.
+	 * @param library the library, as it appears in its bibliocommons URLs, e.g. "seattle"
+	 * @param books the desired books
+	 * @return the items in the feed
+	 */
+	public static List<CandidateRecord> findRSSCandidates(String library, List<Book> books) {
+		if (books == null || books.isEmpty()) {
+			return null;
 		}
-		try {
-			con.setRequestMethod("GET");
-		} catch (ProtocolException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+		StringBuilder query = new StringBuilder("(");
+		for (Book book : books) {
+			if (query.length() > 1) {
+				query.append(" OR ");
+			}
+			// parens, quotes and colons would change the meaning of the query.
+			String title = searchTitle(book).replaceAll("[()\":]", " ").trim();
+			query.append("title:(").append(title).append(")");
 		}
-		con.setRequestProperty("User-Agent", userAgent);
-		int responseCode = 0;
+		query.append(") formatcode:(BK OR EBOOK)");
+		Map<String, String> queryParams = new HashMap<String, String>();
+		queryParams.put("custom_edit", "false");
+		queryParams.put("suppress", "true");
+		queryParams.put("searchType", "bl");
+		queryParams.put("query", query.toString());
+		return fetchRSS(library, WebHelper.toURL(rssBase(library), queryParams), books.size() + " books starting with '" + books.get(0).title + "'");
+	}
+
+	private static String rssBase(String library) {
+		return "https://" + RSS_GATEWAY + "/v2/libraries/" + library + "/rss/search";
+	}
+
+	private static List<CandidateRecord> fetchRSS(String library, String url, String what) {
+		Events.Search search = new Events.Search();
+		search.begin();
+		HttpTransport.Response response = null;
+		List<CandidateRecord> records = null;
 		try {
-			responseCode = con.getResponseCode();
-		} catch (IOException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		}
-		// System.out.println("GET Response Code :: " + responseCode);
-		String bodyAsString = null;
-		if (responseCode == HttpURLConnection.HTTP_OK) { // success
-			BufferedReader in = null;
 			try {
-				in = new BufferedReader(new InputStreamReader(con.getInputStream()));
+				// every library comes through the same gateway, but each gets its own pace there.
+				response = fetch(url, AdaptiveLimiter.forKey(RSS_GATEWAY + "/" + library));
 			} catch (IOException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
+				Log.error("findRSSCandidates: IO exception on %s: %s\n", what, e.toString());
+				return null;
 			}
-			String inputLine;
-			StringBuffer response = new StringBuffer();
-
-			try {
-				while ((inputLine = in.readLine()) != null) {
-					response.append(inputLine);
-				}
-			} catch (IOException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
+			if (response.statusCode != HttpURLConnection.HTTP_OK) {
+				Log.error("GET request did not work.\n");
+				return null;
 			}
-			try {
-				in.close();
-			} catch (IOException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
+			Events.Parse parse = new Events.Parse();
+			parse.begin();
+			long start = System.nanoTime();
+			long allocated = Metrics.allocatedBytes();
+			try (InputStream in = response.bodyStream()) {
+				records = parseRSS(in);
+				return records;
+			} catch (IOException | XMLStreamException e) {
+				Log.error("findRSSCandidates: could not parse results for %s: %s\n", what, e.toString());
+				return new ArrayList<CandidateRecord>();
+			} finally {
+				Metrics.PARSE_RSS.record(System.nanoTime() - start);
+				if (!Metrics.PARSE_ALLOCATED_BYTES.addAllocatedSince(allocated)) {
+					Metrics.PARSE_UNMEASURED.increment();
+				}
+				commitParse(parse, "rss", response, records);
 			}
+		} finally {
+			commitSearch(search, "rss", what, url, response, records);
+		}
+	}
 
-			// print result
-			// System.out.println(response.toString());
-			bodyAsString = response.toString();
-		} else {
-			System.out.println("GET request did not work.");
-			return null;
+	/**
+	 * Parse an RSS feed in one streaming pass, keeping only the fields we match on
+	 * from each &lt;item&gt;. Nothing else in the feed is kept, so the memory used
+	 * doesn't grow with the size of the feed.
+	 * @param in the feed
+	 * @return the items, in feed order.
+	 * @throws XMLStreamException if the feed isn't well-formed XML
+	 */
+	public static List<CandidateRecord> parseRSS(InputStream in) throws XMLStreamException {
+		List<CandidateRecord> items = new ArrayList<CandidateRecord>();
+		XMLStreamReader reader = xmlInputFactory.createXMLStreamReader(in);
+		try {
+			boolean inItem = false;
+			String title = null;
+			String creator = null;
+			String format = null;
+			while (reader.hasNext()) {
+				int event = reader.next();
+				if (event == XMLStreamConstants.END_ELEMENT && inItem && isElement(reader, "item")) {
+					CandidateRecord record = CandidateRecord.fromRss(title, creator, format);
+					if (record != null) {
+						items.add(record);
+					}
+					inItem = false;
+					continue;
+				}
+				if (event != XMLStreamConstants.START_ELEMENT) {
+					continue;
+				}
+				if (!inItem) {
+					if (isElement(reader, "item")) {
+						inItem = true;
+						title = null;
+						creator = null;
+						format = null;
+					}
+					continue;
+				}
+				// like the DOM lookup this replaces, the first matching element in the item wins.
+				if (title == null && isElement(reader, "title")) {
+					title = readText(reader);
+				} else if (creator == null && isElement(reader, "dc:creator")) {
+					creator = readText(reader);
+				} else if (format == null && isElement(reader, "format")) {
+					format = readText(reader);
+				}
+			}
+		} finally {
+			reader.close();
 		}
-		DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-		 DocumentBuilder builder = null;
-		 try {
-			builder = factory.newDocumentBuilder();
-		} catch (ParserConfigurationException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+		return items;
+	}
+
+	// compare the element name as written in the feed, prefix and all.
+	private static boolean isElement(XMLStreamReader reader, String qualifiedName) {
+		String prefix = reader.getPrefix();
+		String local = reader.getLocalName();
+		if (prefix == null || prefix.isEmpty()) {
+			return local.equals(qualifiedName);
 		}
-			org.w3c.dom.Document doc = null;
-			try {
-				doc = builder.parse(new InputSource(new StringReader(bodyAsString)));
-			} catch (SAXException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
-			} catch (IOException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
-			}
-			if (doc == null) {
-				return cands;
+		return qualifiedName.length() == prefix.length() + 1 + local.length()
+				&& qualifiedName.startsWith(prefix) && qualifiedName.charAt(prefix.length()) == ':'
+				&& qualifiedName.endsWith(local);
+	}
+
+	// the trimmed text content of the current element, including that of any nested elements.
+	// Leaves the reader on the element's end tag.
+	private static String readText(XMLStreamReader reader) throws XMLStreamException {
+		StringBuilder buf = new StringBuilder();
+		int depth = 1;
+		while (depth > 0) {
+			int event = reader.next();
+			switch (event) {
+			case XMLStreamConstants.START_ELEMENT:
+				depth++;
+				break;
+			case XMLStreamConstants.END_ELEMENT:
+				depth--;
+				break;
+			case XMLStreamConstants.CHARACTERS:
+			case XMLStreamConstants.CDATA:
+			case XMLStreamConstants.SPACE:
+				buf.append(reader.getText());
+				break;
+			default:
+				break;
 			}
-			NodeList nodeList = doc.getElementsByTagName("item");
-		    for (int itr = 0; itr < nodeList.getLength(); itr++) {
-		        Node node = nodeList.item(itr);
-		        if (node.getNodeType() == Node.ELEMENT_NODE) {
-		          //lement eElement = (Element) node;
-		          //System.out.println("Author: "+ extractFieldValue(eElement, "dc:creator"));
-		          //System.out.println("Title: "+ extractFieldValue(eElement, "title"));
-		          //System.out.println("Format: "+ extractFieldValue(eElement, "format"));
-		          cands.add(node);
-		      }
-		    }
-		    return cands;		 
-	}
-
-	private static String extractFieldValue(Element eElement, String tagName) {
-		if (eElement == null) return null;
-		NodeList nodeList =  eElement.getElementsByTagName(tagName);
-		if (nodeList == null || nodeList.getLength() < 1) return null;
-		Node node = nodeList.item(0);
-		if (node == null) return null;
-		return node.getTextContent();
-	
+		}
+		return buf.toString().trim();
 	}
 
 }
-
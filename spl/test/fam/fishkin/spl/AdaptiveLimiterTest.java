@@ -0,0 +1,167 @@
+package fam.fishkin.spl;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Runs {@link WebHelper#fetch(String, AdaptiveLimiter)} against a stub server on localhost
+ * that answers with whatever statuses the test queues up, and checks what the limiter does.
+ * @author Ken Fishkin
+ *
+ */
+public class AdaptiveLimiterTest {
+  private static final double RATE = 20;
+  private static final double FLOOR = 1;
+  private static final double CEILING = 40;
+
+  // each is {status, Retry-After seconds (or -1 for none)}; once they run out, it's 200s.
+  private final Queue<int[]> answers = new ConcurrentLinkedQueue<int[]>();
+  // when each request came in, and when each answer was sent.
+  private final List<Long> arrivedNanos = new CopyOnWriteArrayList<Long>();
+  private final List<Long> answeredNanos = new CopyOnWriteArrayList<Long>();
+  private HttpServer server;
+  private String url;
+
+  @BeforeEach
+  public void startServer() throws IOException {
+    server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+    server.createContext("/", exchange -> {
+      arrivedNanos.add(System.nanoTime());
+      int[] answer = answers.poll();
+      int status = (answer == null) ? 200 : answer[0];
+      if (answer != null && answer[1] >= 0) {
+        exchange.getResponseHeaders().add("Retry-After", Integer.toString(answer[1]));
+      }
+      byte[] body = ("status " + status).getBytes(StandardCharsets.UTF_8);
+      answeredNanos.add(System.nanoTime());
+      exchange.sendResponseHeaders(status, body.length);
+      try (OutputStream out = exchange.getResponseBody()) {
+        out.write(body);
+      }
+    });
+    server.start();
+    url = "http://localhost:" + server.getAddress().getPort() + "/search";
+    WebHelper.setCache(null);
+  }
+
+  @AfterEach
+  public void stopServer() {
+    server.stop(0);
+  }
+
+  private static AdaptiveLimiter newLimiter(boolean adaptive, double rate) {
+    return new AdaptiveLimiter("localhost", new TokenBucket(rate, 1), adaptive, FLOOR, CEILING, 4);
+  }
+
+  @Test
+  public void successRaisesTheRate() throws IOException {
+    AdaptiveLimiter limiter = newLimiter(true, RATE);
+    HttpTransport.Response response = WebHelper.fetch(url, limiter);
+    assertEquals(200, response.statusCode);
+    assertEquals("status 200", new String(response.body, StandardCharsets.UTF_8));
+    assertEquals(1, arrivedNanos.size());
+    assertEquals(0, limiter.getBackoffs());
+    assertEquals(0, limiter.getInFlight());
+    assertEquals(RATE + 0.05, limiter.getRate(), 1e-9);
+    assertEquals(2, limiter.getConcurrencyLimit());
+  }
+
+  @Test
+  public void retryAfterIsWaitedOutThenTheRateRecovers() throws IOException {
+    answers.add(new int[] { 429, 1 });
+    AdaptiveLimiter limiter = newLimiter(true, RATE);
+    HttpTransport.Response response = WebHelper.fetch(url, limiter);
+    assertEquals(200, response.statusCode);
+    assertEquals(2, arrivedNanos.size());
+    long waitedMillis = TimeUnit.NANOSECONDS.toMillis(arrivedNanos.get(1) - answeredNanos.get(0));
+    assertTrue(waitedMillis >= 1000, "retried after " + waitedMillis + " ms, before the Retry-After");
+    assertEquals(1, limiter.getRetryAfters());
+    assertEquals(1, limiter.getBackoffs());
+    // halved by the 429, then up a step for the 200.
+    assertEquals(RATE / 2 + 0.05, limiter.getRate(), 1e-9);
+    for (int i = 0; i < 5; i++) {
+      assertEquals(200, WebHelper.fetch(url, limiter).statusCode);
+    }
+    assertEquals(RATE / 2 + 6 * 0.05, limiter.getRate(), 1e-9);
+    assertEquals(0, limiter.getInFlight());
+  }
+
+  @Test
+  public void unavailableIsRetriedThenGivenUp() throws IOException {
+    for (int i = 0; i < 4; i++) {
+      answers.add(new int[] { 503, -1 });
+    }
+    AdaptiveLimiter limiter = newLimiter(true, RATE);
+    HttpTransport.Response response = WebHelper.fetch(url, limiter);
+    assertEquals(503, response.statusCode);
+    // the first try and 3 retries.
+    assertEquals(4, arrivedNanos.size());
+    assertEquals(4, limiter.getBackoffs());
+    assertEquals(0, limiter.getRetryAfters());
+    assertEquals(RATE / 16, limiter.getRate(), 1e-9);
+    assertEquals(1, limiter.getConcurrencyLimit());
+    assertEquals(0, limiter.getInFlight());
+  }
+
+  @Test
+  public void rateNeverGoesBelowTheFloor() {
+    AdaptiveLimiter limiter = newLimiter(true, RATE);
+    // 20, 10, 5, 2.5, 1.25, then the floor.
+    for (int i = 0; i < 6; i++) {
+      limiter.acquire();
+      limiter.onResponse(503, 0, null);
+    }
+    assertEquals(FLOOR, limiter.getRate(), 1e-9);
+  }
+
+  @Test
+  public void requestsWaitingOnTheBucketAlsoWaitOutRetryAfter() throws Exception {
+    // not adaptive, so nothing limits the requests in flight but the bucket, which
+    // lets one through every 200 ms: the 429 is back long before the second is let go.
+    AdaptiveLimiter limiter = newLimiter(false, 5);
+    // get the connection set up first, so the 429 comes back quickly.
+    WebHelper.fetch(url, limiter);
+    arrivedNanos.clear();
+    answeredNanos.clear();
+    answers.add(new int[] { 429, 1 });
+    List<Thread> threads = new ArrayList<Thread>();
+    for (int i = 0; i < 4; i++) {
+      threads.add(Thread.ofPlatform().start(() -> {
+        try {
+          WebHelper.fetch(url, limiter);
+        } catch (IOException e) {
+          throw new RuntimeException(e);
+        }
+      }));
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    assertEquals(5, arrivedNanos.size());
+    long throttledAt = answeredNanos.get(0);
+    for (int i = 1; i < arrivedNanos.size(); i++) {
+      long afterMillis = TimeUnit.NANOSECONDS.toMillis(arrivedNanos.get(i) - throttledAt);
+      assertTrue(afterMillis >= 1000, "request " + i + " came " + afterMillis
+          + " ms after the Retry-After");
+    }
+    assertEquals(0, limiter.getInFlight());
+  }
+}
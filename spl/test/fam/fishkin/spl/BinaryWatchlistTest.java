@@ -0,0 +1,181 @@
+package fam.fishkin.spl;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Converts TDF books files to binary and back, and checks that the same bytes come back,
+ * before and after statuses are changed.
+ * @author Ken Fishkin
+ *
+ */
+public class BinaryWatchlistTest {
+  private static final Charset UTF8 = StandardCharsets.UTF_8;
+  // a bit of everything a books file can have.
+  private static final String SAMPLE = "# status as of Sun, October 18 2026\n"
+      + "Balko, Radley\tRise of the Warrior Cop\t??\n"
+      + "Cercas, Javier\tLord of All the Dead\tNYT\tH26\n"
+      + "Chandler, Raymond\tThe Long Goodbye\t\tNO26\r\n"
+      + "# a comment, kept as it is\r"
+      + "\r\n"
+      + "Carrington, Damian\tjust two fields\n"
+      + "Kovac, Ana\ttoo\tmany\tfields\there\n"
+      + "Ashdown, Paddy\tA Fortunate Life\tEB05\t\t\n"
+      + "García Márquez, Gabriel\tCien años de soledad\teBook7\n"
+      + "Okafor, Nnedi\tBinti\t2021\n"
+      + "Tanaka, Hiro\tNo line end at the end\tREAD";
+
+  private Path file;
+
+  @BeforeEach
+  public void createFile() throws IOException {
+    file = Files.createTempFile("books", BinaryWatchlist.EXTENSION);
+  }
+
+  @AfterEach
+  public void deleteFile() throws IOException {
+    Files.deleteIfExists(file);
+  }
+
+  @Test
+  public void everyKindOfLineComesBackTheSame() throws IOException {
+    byte[] tdf = SAMPLE.getBytes(UTF8);
+    assertArrayEquals(tdf, BinaryWatchlist.fromTdf(tdf, UTF8).toTdf());
+    BinaryWatchlist.fromTdf(tdf, UTF8).write(file);
+    BinaryWatchlist read = BinaryWatchlist.read(file);
+    assertEquals(UTF8, read.getCharset());
+    assertArrayEquals(tdf, read.toTdf());
+  }
+
+  @Test
+  public void generatedFilesComeBackTheSame() throws IOException {
+    Random random = new Random(20);
+    for (int i = 0; i < 200; i++) {
+      byte[] tdf = generate(random, random.nextInt(40)).getBytes(UTF8);
+      BinaryWatchlist.fromTdf(tdf, UTF8).write(file);
+      assertArrayEquals(tdf, BinaryWatchlist.read(file).toTdf());
+    }
+  }
+
+  @Test
+  public void booksKnowTheirRows() throws IOException {
+    BinaryWatchlist.fromTdf(SAMPLE.getBytes(UTF8), UTF8).write(file);
+    String[] lines = SAMPLE.split("\r\n|\r|\n", -1);
+    List<MediaItem> books = BinaryWatchlist.read(file).books();
+    assertEquals(7, books.size());
+    for (MediaItem item : books) {
+      Book book = (Book) item;
+      assertTrue(lines[book.row].startsWith(book.author + "\t"), book.row + ": " + book);
+      assertTrue(lines[book.row].contains("\t" + book.rawFormat), book.row + ": " + book);
+      assertEquals(-1L, book.statusOffset);
+    }
+  }
+
+  @Test
+  public void statusEditsLandOnTheirLines() throws IOException {
+    BinaryWatchlist list = BinaryWatchlist.fromTdf(SAMPLE.getBytes(UTF8), UTF8);
+    // a book in the columns, one with a recommender, and one kept as text for its trailing tabs.
+    assertTrue(list.setStatus(1, "??", "eBook26"));
+    assertTrue(list.setStatus(2, "H26", "NO26"));
+    assertTrue(list.setStatus(8, "EB05", "H26"));
+    // not a status the line has, or not a book at all.
+    assertFalse(list.setStatus(3, "??", "NO26"));
+    assertFalse(list.setStatus(99, "??", "NO26"));
+    list.setStatusLine("# status as of Mon, October 19 2026");
+    list.write(file);
+    String expected = SAMPLE.replace("Sun, October 18", "Mon, October 19")
+        .replace("Warrior Cop\t??", "Warrior Cop\teBook26")
+        .replace("NYT\tH26", "NYT\tNO26")
+        .replace("Life\tEB05", "Life\tH26");
+    assertEquals(expected, new String(BinaryWatchlist.read(file).toTdf(), UTF8));
+  }
+
+  @Test
+  public void updateWritesTheChangedStatuses() throws IOException {
+    BinaryWatchlist.fromTdf(SAMPLE.getBytes(UTF8), UTF8).write(file);
+    BinaryWatchlist.Update update = new BinaryWatchlist.Update(file.toFile(), "# status as of today");
+    for (MediaItem item : BinaryWatchlist.read(file).books()) {
+      Book book = (Book) item;
+      if (book.rawFormat.equals("??") || book.rawFormat.equals("READ")) {
+        book.rawFormat = "NO26";
+      }
+      update.add(book);
+    }
+    assertTrue(update.finish());
+    String expected = SAMPLE.replace("# status as of Sun, October 18 2026", "# status as of today")
+        .replace("Warrior Cop\t??", "Warrior Cop\tNO26")
+        .replace("at the end\tREAD", "at the end\tNO26");
+    assertEquals(expected, new String(BinaryWatchlist.read(file).toTdf(), UTF8));
+  }
+
+  @Test
+  public void updateLeavesAChangedFileAlone() throws IOException {
+    BinaryWatchlist.fromTdf(SAMPLE.getBytes(UTF8), UTF8).write(file);
+    List<MediaItem> books = BinaryWatchlist.read(file).books();
+    // someone else changes the first book's status in the meantime.
+    BinaryWatchlist other = BinaryWatchlist.read(file);
+    assertTrue(other.setStatus(1, "??", "H26"));
+    other.write(file);
+    byte[] before = Files.readAllBytes(file);
+    BinaryWatchlist.Update update = new BinaryWatchlist.Update(file.toFile(), "# status as of today");
+    for (MediaItem item : books) {
+      ((Book) item).rawFormat = "eBook26";
+      update.add(item);
+    }
+    assertFalse(update.finish());
+    assertArrayEquals(before, Files.readAllBytes(file));
+  }
+
+  // a books file: mostly books, with comments, blank and odd lines, and every kind of line end.
+  private static String generate(Random random, int lineCount) {
+    String[] names = { "Balko", "Cercas", "Nguyen", "Müller", "田中", "" };
+    String[] statuses = { "??", "NO", "NO26", "H21", "eBook26", "EB05", "BK", "2021", "READ", "7", "" };
+    String[] ends = { "\n", "\n", "\n", "\r\n", "\r" };
+    List<String> lines = new ArrayList<String>();
+    for (int i = 0; i < lineCount; i++) {
+      String author = names[random.nextInt(names.length)];
+      String title = "Title " + random.nextInt(1000);
+      String status = statuses[random.nextInt(statuses.length)];
+      switch (random.nextInt(8)) {
+      case 0:
+        lines.add("# comment " + i);
+        break;
+      case 1:
+        lines.add("");
+        break;
+      case 2:
+        lines.add(author + "\t" + title + "\t\t" + status + "\t");
+        break;
+      case 3:
+        lines.add(author + "\t" + title + "\trec " + i + "\t" + status);
+        break;
+      default:
+        lines.add(author + "\t" + title + "\t" + status);
+        break;
+      }
+    }
+    StringBuilder tdf = new StringBuilder();
+    for (int i = 0; i < lines.size(); i++) {
+      tdf.append(lines.get(i));
+      if (i < lines.size() - 1 || random.nextBoolean()) {
+        tdf.append(ends[random.nextInt(ends.length)]);
+      }
+    }
+    return tdf.toString();
+  }
+}